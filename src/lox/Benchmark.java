@@ -0,0 +1,167 @@
+package lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * bench(name, fn, options) times a function that takes no arguments.
+ * After a warm-up it runs the function in batches, one sample per batch, drops
+ * samples outside the interquartile fences and reports the mean and
+ * percentiles of the rest, with the bytes allocated per call when the JVM
+ * counts them. The report is printed and also returned as a map.
+ *
+ * options is nil or a map that may set "warmup" (calls before measuring),
+ * "samples" (batches measured) and "iterations" (calls per batch, otherwise
+ * picked so a batch takes about BATCH_NANOS).
+ */
+final class Benchmark {
+    private static final int WARMUP = 1000;
+    private static final int SAMPLES = 30;
+    private static final long BATCH_NANOS = 10_000_000;
+
+    private static final com.sun.management.ThreadMXBean threads = allocationCounter();
+
+    private Benchmark() {
+    }
+
+    @Native
+    static LoxMap bench(Interpreter interpreter, String name, Object function, Object options) {
+        if (!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != 0)
+            throw new NativeError("Argument 2 to 'bench' must be a function without parameters.");
+        if (options != null && !(options instanceof LoxMap))
+            throw new NativeError("Argument 3 to 'bench' must be a map or nil.");
+
+        LoxCallable body = (LoxCallable) function;
+        LoxMap settings = (LoxMap) options;
+        int warmup = option(settings, "warmup", WARMUP);
+        int samples = Math.max(1, option(settings, "samples", SAMPLES));
+
+        run(interpreter, body, warmup);
+        int iterations = option(settings, "iterations", 0);
+        if (iterations <= 0)
+            iterations = calibrate(interpreter, body);
+
+        double[] times = new double[samples];
+        long allocated = allocatedBytes();
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            run(interpreter, body, iterations);
+            times[i] = (double) (System.nanoTime() - start) / iterations;
+        }
+        long total = (long) samples * iterations;
+        double bytes = allocated < 0 ? -1 : (double) (allocatedBytes() - allocated) / total;
+
+        Arrays.sort(times);
+        double[] kept = withoutOutliers(times);
+
+        LoxMap report = new LoxMap();
+        put(report, "mean", mean(kept));
+        put(report, "p50", percentile(kept, 50));
+        put(report, "p90", percentile(kept, 90));
+        put(report, "p99", percentile(kept, 99));
+        put(report, "min", kept[0]);
+        put(report, "max", kept[kept.length - 1]);
+        put(report, "outliers", times.length - kept.length);
+        put(report, "samples", samples);
+        put(report, "iterations", iterations);
+        if (bytes >= 0)
+            put(report, "bytesPerOp", bytes);
+
+        System.out.println(name + ": mean " + time(mean(kept)) +
+                ", p50 " + time(percentile(kept, 50)) +
+                ", p90 " + time(percentile(kept, 90)) +
+                ", p99 " + time(percentile(kept, 99)) +
+                (bytes >= 0 ? ", " + Math.round(bytes) + " B/op" : "") +
+                " (" + samples + " x " + iterations + " calls, " +
+                (times.length - kept.length) + " outliers)");
+        return report;
+    }
+
+    private static void run(Interpreter interpreter, LoxCallable body, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            body.call0(interpreter);
+        }
+    }
+
+    // doubles the batch until one takes long enough to time reliably
+    private static int calibrate(Interpreter interpreter, LoxCallable body) {
+        int iterations = 1;
+        while (iterations < (1 << 30)) {
+            long start = System.nanoTime();
+            run(interpreter, body, iterations);
+            if (System.nanoTime() - start >= BATCH_NANOS)
+                break;
+            iterations *= 2;
+        }
+        return iterations;
+    }
+
+    // keeps the samples inside Q1 - 1.5 IQR and Q3 + 1.5 IQR, times are sorted
+    private static double[] withoutOutliers(double[] times) {
+        double q1 = percentile(times, 25);
+        double q3 = percentile(times, 75);
+        double fence = (q3 - q1) * 1.5;
+        double[] kept = Arrays.stream(times).filter(t -> t >= q1 - fence && t <= q3 + fence).toArray();
+        return kept.length == 0 ? times : kept;
+    }
+
+    // linear interpolation between the closest ranks
+    private static double percentile(double[] sorted, double percent) {
+        double rank = percent / 100 * (sorted.length - 1);
+        int low = (int) Math.floor(rank);
+        int high = (int) Math.ceil(rank);
+        return sorted[low] + (sorted[high] - sorted[low]) * (rank - low);
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static String time(double nanos) {
+        if (nanos < 1_000)
+            return String.format(Locale.ROOT, "%.1f ns", nanos);
+        if (nanos < 1_000_000)
+            return String.format(Locale.ROOT, "%.2f us", nanos / 1_000);
+        if (nanos < 1_000_000_000)
+            return String.format(Locale.ROOT, "%.2f ms", nanos / 1_000_000);
+        return String.format(Locale.ROOT, "%.2f s", nanos / 1_000_000_000);
+    }
+
+    private static int option(LoxMap options, String name, int otherwise) {
+        if (options == null)
+            return otherwise;
+        Object value = options.get(name);
+        if (value == null)
+            return otherwise;
+        if (!(value instanceof Double))
+            throw new NativeError("Benchmark option '" + name + "' must be a number.");
+        return (int) (double) value;
+    }
+
+    private static void put(LoxMap map, String key, double value) {
+        map.put(null, key, value);
+    }
+
+    // bytes this thread allocated so far, or -1 when the JVM doesn't count them
+    static long allocatedBytes() {
+        if (threads == null)
+            return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        if (!counter.isThreadAllocatedMemorySupported())
+            return null;
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+}
@@ -0,0 +1,111 @@
+package lox;
+
+/**
+ * Limits on a single run of a program, so a runaway script fails with a
+ * runtime error instead of holding the JVM. Each run is given its Limits, see
+ * Interpreter, and a limit of 0 is off. Runs that aren't given any take these
+ * properties':
+ *
+ *   -Dlox.budget.statements   statements executed
+ *   -Dlox.budget.millis       wall-clock time
+ *   -Dlox.budget.bytes        bytes allocated by the running thread
+ *   -Dlox.budget.depth        nested function calls
+ *
+ * Statements are counted as they run, but the limits are only checked at loop
+ * back-edges and calls, which every long-running program keeps passing
+ * through. The clock and the allocation counter cost more to read, so they're
+ * read every SLOW_CHECK_INTERVAL checks. Compiled functions have no checks, so
+ * the jit stays off while there's a budget.
+ */
+class Budget {
+    private static final int SLOW_CHECK_INTERVAL = 1024;
+
+    static final class Limits {
+        static final Limits NONE = new Limits(0, 0, 0, 0);
+        static final Limits DEFAULT = new Limits(Long.getLong("lox.budget.statements", 0),
+                Long.getLong("lox.budget.millis", 0), Long.getLong("lox.budget.bytes", 0),
+                Integer.getInteger("lox.budget.depth", 0));
+
+        final long statements;
+        final long millis;
+        final long bytes;
+        final int depth;
+
+        Limits(long statements, long millis, long bytes, int depth) {
+            this.statements = Math.max(statements, 0);
+            this.millis = Math.max(millis, 0);
+            this.bytes = Math.max(bytes, 0);
+            this.depth = Math.max(depth, 0);
+        }
+
+        boolean any() {
+            return statements > 0 || millis > 0 || bytes > 0 || depth > 0;
+        }
+
+        // the tighter of each of these limits and cap's
+        Limits within(Limits cap) {
+            return new Limits(tighter(statements, cap.statements), tighter(millis, cap.millis),
+                    tighter(bytes, cap.bytes), (int) tighter(depth, cap.depth));
+        }
+
+        private static long tighter(long limit, long cap) {
+            if (limit == 0 || cap == 0)
+                return Math.max(limit, cap);
+            return Math.min(limit, cap);
+        }
+    }
+
+    private final Limits limits;
+    long statements = 0;
+    private int depth = 0;
+    private int checks = 0;
+    private final long deadline;
+    // the thread's allocation counter past which the run is over
+    private final long allocationLimit;
+
+    private Budget(Limits limits) {
+        this.limits = limits;
+        // a limit of centuries is as good as none, and mustn't overflow
+        long millis = Math.min(limits.millis, Long.MAX_VALUE / 4_000_000);
+        deadline = millis > 0 ? System.nanoTime() + millis * 1_000_000 : Long.MAX_VALUE;
+        long allocated = Benchmark.allocatedBytes();
+        allocationLimit = limits.bytes > 0 && allocated >= 0 ? allocated + limits.bytes : Long.MAX_VALUE;
+    }
+
+    // a fresh budget for a run, or null when no limit is set
+    static Budget start(Limits limits) {
+        return limits.any() ? new Budget(limits) : null;
+    }
+
+    // at a loop back-edge, the error is reported at the loop's keyword
+    void check(Token loop) {
+        String exceeded = exceeded();
+        if (exceeded != null)
+            throw new RuntimeError(loop, exceeded);
+    }
+
+    // at the start of a function call, the call site reports the error
+    void enter() {
+        String exceeded = limits.depth > 0 && depth >= limits.depth ? "Call depth budget exceeded." : exceeded();
+        if (exceeded != null)
+            throw new NativeError(exceeded);
+        depth++;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    private String exceeded() {
+        if (limits.statements > 0 && statements > limits.statements)
+            return "Statement budget exceeded.";
+        if (++checks < SLOW_CHECK_INTERVAL)
+            return null;
+        checks = 0;
+        if (System.nanoTime() > deadline)
+            return "Time budget exceeded.";
+        if (allocationLimit != Long.MAX_VALUE && Benchmark.allocatedBytes() > allocationLimit)
+            return "Memory budget exceeded.";
+        return null;
+    }
+}
@@ -0,0 +1,295 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for the jit: a constant pool, methods with
+ * a code attribute, and jumps to labels. Classes are written as version 49 so
+ * the verifier infers stack frames itself and no StackMapTable is needed.
+ */
+class Bytecode {
+    // the opcodes the jit uses
+    static final int DCONST_0 = 0x0e;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DSTORE = 0x39;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    // a jump target, jumps to it before it is bound are patched when it is
+    static class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    class Method {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Method(int access, String name, String descriptor, int locals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = locals;
+        }
+
+        // an instruction without operands, delta is its effect on the stack depth
+        void op(int opcode, int delta) {
+            code.write(opcode);
+            grow(delta);
+        }
+
+        // loads and stores with a local slot operand
+        void local(int opcode, int slot, int delta) {
+            code.write(opcode);
+            code.write(slot);
+            maxLocals = Math.max(maxLocals, slot + (opcode == DLOAD || opcode == DSTORE ? 2 : 1));
+            grow(delta);
+        }
+
+        // instructions with a constant pool operand
+        void ref(int opcode, int index, int delta) {
+            code.write(opcode);
+            u2(index);
+            grow(delta);
+        }
+
+        void invokeInterface(int index, int arguments, int delta) {
+            code.write(INVOKEINTERFACE);
+            u2(index);
+            // the receiver counts as an argument slot
+            code.write(arguments + 1);
+            code.write(0);
+            grow(delta);
+        }
+
+        void jump(int opcode, Label label, int delta) {
+            int at = code.size();
+            code.write(opcode);
+            if (label.position >= 0) {
+                u2(label.position - at);
+            } else {
+                label.jumps.add(at);
+                u2(0);
+            }
+            grow(delta);
+        }
+
+        void bind(Label label) {
+            label.position = code.size();
+            labels.add(label);
+        }
+
+        int size() {
+            return code.size();
+        }
+
+        private void u2(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        private void grow(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void end() {
+            byte[] bytes = code.toByteArray();
+            for (Label label : labels) {
+                for (int at : label.jumps) {
+                    int offset = label.position - at;
+                    bytes[at + 1] = (byte) (offset >>> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            try {
+                data.writeShort(access);
+                data.writeShort(utf8(name));
+                data.writeShort(utf8(descriptor));
+                data.writeShort(1);
+                data.writeShort(utf8("Code"));
+                data.writeInt(12 + bytes.length);
+                data.writeShort(maxStack);
+                data.writeShort(maxLocals);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+                // no exception table, no attributes
+                data.writeShort(0);
+                data.writeShort(0);
+            } catch (IOException error) {
+                throw new AssertionError(error);
+            }
+            methods.add(out.toByteArray());
+        }
+    }
+
+    Method method(String name, String descriptor, boolean isStatic, int locals) {
+        int access = ACC_PUBLIC | (isStatic ? ACC_STATIC : 0);
+        return new Method(access, name, descriptor, locals);
+    }
+
+    int utf8(String value) {
+        return constant("Utf8 " + value, 1, data -> {
+            data.writeByte(1);
+            data.writeUTF(value);
+        });
+    }
+
+    int classRef(String name) {
+        int utf8 = utf8(name);
+        return constant("Class " + name, 1, data -> {
+            data.writeByte(7);
+            data.writeShort(utf8);
+        });
+    }
+
+    int doubleConstant(double value) {
+        // two slots, like every double in the pool
+        return constant("Double " + Double.doubleToRawLongBits(value), 2, data -> {
+            data.writeByte(6);
+            data.writeDouble(value);
+        });
+    }
+
+    int integerConstant(int value) {
+        return constant("Integer " + value, 1, data -> {
+            data.writeByte(3);
+            data.writeInt(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int owned = classRef(owner);
+        int utf8Name = utf8(name);
+        int utf8Type = utf8(descriptor);
+        int nameAndType = constant("NameAndType " + name + " " + descriptor, 1, data -> {
+            data.writeByte(12);
+            data.writeShort(utf8Name);
+            data.writeShort(utf8Type);
+        });
+        return constant(tag + " " + owner + "." + name + descriptor, 1, data -> {
+            data.writeByte(tag);
+            data.writeShort(owned);
+            data.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write(DataOutputStream data) throws IOException;
+    }
+
+    // adds an entry to the pool unless an equal one is there already
+    private int constant(String key, int slots, Entry entry) {
+        Integer index = poolEntries.get(key);
+        if (index != null)
+            return index;
+        try {
+            entry.write(pool);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        index = poolCount;
+        poolCount += slots;
+        poolEntries.put(key, index);
+        return index;
+    }
+
+    byte[] toClass(String name, String superName, String interfaceName) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int implemented = classRef(interfaceName);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeInt(0xCAFEBABE);
+            data.writeShort(0);
+            data.writeShort(49);
+            data.writeShort(poolCount);
+            data.write(poolBytes.toByteArray());
+            data.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            data.writeShort(thisClass);
+            data.writeShort(superClass);
+            data.writeShort(1);
+            data.writeShort(implemented);
+            // no fields
+            data.writeShort(0);
+            data.writeShort(methods.size());
+            for (byte[] method : methods) {
+                data.write(method);
+            }
+            // no attributes
+            data.writeShort(0);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,728 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The closure-compiling engine, picked with -Dlox.engine=closure.
+ * Each resolved node is turned once into a Java lambda that already knows its
+ * operator, its variable's distance, its constant or its argument count, so
+ * running the program is just lambdas calling each other with the current
+ * enviroment. Runtime values, enviroments and errors are the same ones the
+ * tree-walking Interpreter uses.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>, Stmt.Visitor<ClosureCompiler.Exec> {
+    interface Eval {
+        Object eval(Enviroment enviroment);
+    }
+
+    interface Exec {
+        void exec(Enviroment enviroment);
+    }
+
+    // an expression the type inference proved to be a number, its value isn't boxed
+    interface NumberEval {
+        double eval(Enviroment enviroment);
+    }
+
+    private final Interpreter interpreter;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Exec compile(Stmt stmt) {
+        Exec compiled = stmt.accept(this);
+        // only interpreters that can have a budget pay for counting statements
+        if (!interpreter.limits.any())
+            return compiled;
+        return enviroment -> {
+            Budget budget = interpreter.budget;
+            if (budget != null)
+                budget.statements++;
+            compiled.exec(enviroment);
+        };
+    }
+
+    private Eval compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // runs the statements one after the other in the enviroment it's given
+    Exec compile(List<Stmt> statements) {
+        Exec[] compiled = new Exec[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(statements.get(i));
+        }
+        if (compiled.length == 1)
+            return compiled[0];
+        return enviroment -> {
+            for (Exec statement : compiled) {
+                statement.exec(enviroment);
+            }
+        };
+    }
+
+    // function bodies are compiled with the declaration and kept on it for
+    // LoxFunction to run
+    // a generator's body is suspended in the middle, which only the tree-walking
+    // frames in LoxGenerator can do
+    private void compileBody(Stmt.Function function) {
+        if (function.compiled == null && !function.generator)
+            function.compiled = compile(function.body);
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        Exec body = compile(stmt.statements);
+        if (stmt.declaresNothing)
+            return body;
+        return enviroment -> body.exec(new Enviroment(enviroment));
+    }
+
+    @Override
+    public Exec visitClassStmt(Stmt.Class stmt) {
+        Eval superclassValue = stmt.superclass == null ? null : compile(stmt.superclass);
+        for (Stmt.Function method : stmt.methods) {
+            compileBody(method);
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            compileBody(method);
+        }
+
+        return enviroment -> {
+            Object superclass = null;
+            if (superclassValue != null) {
+                superclass = superclassValue.eval(enviroment);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name, "Superclass must be a class");
+                }
+            }
+
+            enviroment.define(stmt.name.lexeme, null);
+            Enviroment scope = enviroment;
+            if (superclass != null) {
+                scope = new Enviroment(enviroment);
+                scope.define("super", superclass);
+            }
+
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                methods.put(method.name.lexeme, new LoxFunction(method, scope, method.name.lexeme.equals("init")));
+            }
+
+            Map<String, Object> staticMethods = new HashMap<>();
+            for (Stmt.Function staticMethod : stmt.staticMethods) {
+                staticMethods.put(staticMethod.name.lexeme, new LoxFunction(staticMethod, scope, false));
+            }
+
+            LoxClass klass;
+            if (staticMethods.size() == 0) {
+                klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+            } else {
+                klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods, staticMethods);
+            }
+            enviroment.assign(stmt.name, klass);
+        };
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression = compile(stmt.expression);
+        return enviroment -> {
+            Object value = expression.eval(enviroment);
+            if (interpreter.isPromptMode)
+                interpreter.out.println(Interpreter.stringify(value));
+        };
+    }
+
+    @Override
+    public Exec visitForStmt(Stmt.For stmt) {
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        Exec initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        Eval condition = stmt.condition == null ? null : compile(stmt.condition);
+        Eval increment = stmt.increment == null ? null : compile(stmt.increment);
+        Exec body = compile(stmt.body);
+        String name = stmt.captured ? ((Stmt.Var) stmt.initializer).name.lexeme : null;
+
+        return keepInvariants(stmt.invariants, enviroment -> {
+            Enviroment loop = scoped ? new Enviroment(enviroment) : enviroment;
+            if (initializer != null)
+                initializer.exec(loop);
+
+            while (condition == null || Interpreter.isTruthy(condition.eval(loop))) {
+                body.exec(loop);
+                if (interpreter.running != null)
+                    interpreter.running.hotness++;
+                if (interpreter.budget != null)
+                    interpreter.budget.check(stmt.keyword);
+                if (name != null) {
+                    // closures made by this iteration keep their own copy of the variable
+                    Enviroment next = new Enviroment(enviroment);
+                    next.define(name, loop.getAt(0, name));
+                    loop = next;
+                }
+                if (increment != null)
+                    increment.eval(loop);
+            }
+        });
+    }
+
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt) {
+        compileBody(stmt);
+        return enviroment -> enviroment.define(stmt.name.lexeme, new LoxFunction(stmt, enviroment, false));
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return enviroment -> {
+                if (Interpreter.isTruthy(condition.eval(enviroment)))
+                    thenBranch.exec(enviroment);
+            };
+        }
+
+        Exec elseBranch = compile(stmt.elseBranch);
+        return enviroment -> {
+            if (Interpreter.isTruthy(condition.eval(enviroment))) {
+                thenBranch.exec(enviroment);
+            } else {
+                elseBranch.exec(enviroment);
+            }
+        };
+    }
+
+    @Override
+    public Exec visitImportStmt(Stmt.Import stmt) {
+        // a module is compiled when it first runs, which is the only time it runs
+        return enviroment -> {
+            ModuleLoader.Module module = stmt.module;
+            if (module.executed)
+                return;
+            module.executed = true;
+            compile(module.statements).exec(interpreter.globals);
+        };
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        Eval expression = compile(stmt.expression);
+        return enviroment -> interpreter.out.println(Interpreter.stringify(expression.eval(enviroment)));
+    }
+
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return enviroment -> {
+                throw new Return(null);
+            };
+        }
+
+        Eval value = compile(stmt.value);
+        return enviroment -> {
+            throw new Return(value.eval(enviroment));
+        };
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (stmt.initializer == null)
+            return enviroment -> enviroment.define(name, null);
+
+        Eval initializer = compile(stmt.initializer);
+        return enviroment -> enviroment.define(name, initializer.eval(enviroment));
+    }
+
+    @Override
+    public Exec visitYieldStmt(Stmt.Yield stmt) {
+        // generator bodies aren't compiled, see compileBody()
+        throw new IllegalStateException("A generator's body can't be compiled.");
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec body = compile(stmt.body);
+        Exec loop = enviroment -> {
+            while (Interpreter.isTruthy(condition.eval(enviroment))) {
+                body.exec(enviroment);
+                if (interpreter.running != null)
+                    interpreter.running.hotness++;
+                if (interpreter.budget != null)
+                    interpreter.budget.check(stmt.keyword);
+            }
+        };
+        return keepInvariants(stmt.invariants, loop);
+    }
+
+    // gives each run of a loop with invariants a frame for them, see LoopInvariants
+    private Exec keepInvariants(int invariants, Exec loop) {
+        if (invariants == 0)
+            return loop;
+        return enviroment -> {
+            Object[] enclosing = interpreter.invariants;
+            interpreter.invariants = LoopInvariants.frame(enclosing, invariants);
+            try {
+                loop.exec(enviroment);
+            } finally {
+                interpreter.invariants = enclosing;
+            }
+        };
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        int distance = expr.depth;
+        if (distance < 0) {
+            Enviroment globals = interpreter.globals;
+            return enviroment -> {
+                Object result = value.eval(enviroment);
+                globals.assign(expr.name, result);
+                return result;
+            };
+        }
+
+        return enviroment -> {
+            Object result = value.eval(enviroment);
+            enviroment.assignAt(distance, expr.name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        Eval binary = binary(expr);
+        LoopInvariants.Slot slot = expr.hoisted;
+        if (slot == null)
+            return binary;
+        // an invariant of a running loop is only computed the first time, see
+        // LoopInvariants
+        int index = slot.index;
+        return enviroment -> {
+            Object[] frame = slot.frame(interpreter.invariants);
+            Object value = frame[index];
+            if (value == null)
+                frame[index] = value = binary.eval(enviroment);
+            return value;
+        };
+    }
+
+    private Eval binary(Expr.Binary expr) {
+        if (expr.operands == TypeInference.Type.NUMBER)
+            return numeric(expr);
+        if (expr.operands == TypeInference.Type.STRING && expr.operator.type == TokenType.PLUS) {
+            Eval left = compile(expr.left);
+            Eval right = compile(expr.right);
+            return enviroment -> (String) left.eval(enviroment) + (String) right.eval(enviroment);
+        }
+
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case BANG_EQUAL:
+                return enviroment -> !Interpreter.isEqual(left.eval(enviroment), right.eval(enviroment));
+            case EQUAL_EQUAL:
+                return enviroment -> Interpreter.isEqual(left.eval(enviroment), right.eval(enviroment));
+            case GREATER:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a > (double) b;
+                };
+            case GREATER_EQUAL:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a >= (double) b;
+                };
+            case LESS:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a < (double) b;
+                };
+            case LESS_EQUAL:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a <= (double) b;
+                };
+            case MINUS:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a - (double) b;
+                };
+            case PLUS:
+                return enviroment -> Interpreter.plus(operator, left.eval(enviroment), right.eval(enviroment));
+            case SLASH:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a / (double) b;
+                };
+            case STAR:
+                return enviroment -> {
+                    Object a = left.eval(enviroment);
+                    Object b = right.eval(enviroment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a * (double) b;
+                };
+        }
+
+        // unreachable
+        return enviroment -> null;
+    }
+
+    // both operands are proven numbers, nothing is checked and only the result is
+    // boxed
+    private Eval numeric(Expr.Binary expr) {
+        NumberEval left = number(expr.left);
+        NumberEval right = number(expr.right);
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                return enviroment -> Double.compare(left.eval(enviroment), right.eval(enviroment)) != 0;
+            case EQUAL_EQUAL:
+                return enviroment -> Double.compare(left.eval(enviroment), right.eval(enviroment)) == 0;
+            case GREATER:
+                return enviroment -> left.eval(enviroment) > right.eval(enviroment);
+            case GREATER_EQUAL:
+                return enviroment -> left.eval(enviroment) >= right.eval(enviroment);
+            case LESS:
+                return enviroment -> left.eval(enviroment) < right.eval(enviroment);
+            case LESS_EQUAL:
+                return enviroment -> left.eval(enviroment) <= right.eval(enviroment);
+        }
+        NumberEval value = arithmetic(expr.operator.type, left, right);
+        return enviroment -> value.eval(enviroment);
+    }
+
+    // the operands of an arithmetic node that is itself an operand stay unboxed
+    // too, anything else proven a number is unboxed once it's evaluated
+    private NumberEval number(Expr expr) {
+        if (expr instanceof Expr.Grouping)
+            return number(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Literal) {
+            double value = (double) ((Expr.Literal) expr).value;
+            return enviroment -> value;
+        }
+        if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operand == TypeInference.Type.NUMBER) {
+            NumberEval right = number(((Expr.Unary) expr).right);
+            return enviroment -> -right.eval(enviroment);
+        }
+        if (expr instanceof Expr.Binary && ((Expr.Binary) expr).operands == TypeInference.Type.NUMBER
+                && ((Expr.Binary) expr).hoisted == null) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            NumberEval value = arithmetic(binary.operator.type, number(binary.left), number(binary.right));
+            if (value != null)
+                return value;
+        }
+
+        Eval boxed = compile(expr);
+        return enviroment -> (double) boxed.eval(enviroment);
+    }
+
+    // null for an operator that doesn't give a number
+    private static NumberEval arithmetic(TokenType operator, NumberEval left, NumberEval right) {
+        switch (operator) {
+            case MINUS:
+                return enviroment -> left.eval(enviroment) - right.eval(enviroment);
+            case PLUS:
+                return enviroment -> left.eval(enviroment) + right.eval(enviroment);
+            case SLASH:
+                return enviroment -> left.eval(enviroment) / right.eval(enviroment);
+            case STAR:
+                return enviroment -> left.eval(enviroment) * right.eval(enviroment);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr) {
+        Eval call = expr.inline == null ? call(expr) : inline(expr, call(expr));
+        return enviroment -> {
+            try {
+                return call.eval(enviroment);
+            } catch (NativeError error) {
+                throw new RuntimeError(expr.paren, error.getMessage());
+            }
+        };
+    }
+
+    // the callee is a global, looking it up again when the call isn't inlined
+    // costs no more than the lookup
+    private Eval inline(Expr.Call expr, Eval call) {
+        Inliner.Inline inline = expr.inline;
+        Eval callee = compile(expr.callee);
+        Eval body = compile(inline.body);
+        Eval[] arguments = new Eval[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        return enviroment -> {
+            if (interpreter.budget != null || !inline.of(callee.eval(enviroment)))
+                return call.eval(enviroment);
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].eval(enviroment);
+            }
+            Object[] caller = interpreter.inlined;
+            interpreter.inlined = values;
+            try {
+                return body.eval(enviroment);
+            } finally {
+                interpreter.inlined = caller;
+            }
+        };
+    }
+
+    @Override
+    public Eval visitArgumentExpr(Expr.Argument expr) {
+        int index = expr.index;
+        return enviroment -> interpreter.inlined[index];
+    }
+
+    private Eval call(Expr.Call expr) {
+        Eval callee = compile(expr.callee);
+        Eval[] arguments = new Eval[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        switch (arguments.length) {
+            case 0:
+                return enviroment -> Interpreter.callable(expr, callee.eval(enviroment)).call0(interpreter);
+            case 1: {
+                Eval a = arguments[0];
+                return enviroment -> {
+                    Object function = callee.eval(enviroment);
+                    Object first = a.eval(enviroment);
+                    return Interpreter.callable(expr, function).call1(interpreter, first);
+                };
+            }
+            case 2: {
+                Eval a = arguments[0];
+                Eval b = arguments[1];
+                return enviroment -> {
+                    Object function = callee.eval(enviroment);
+                    Object first = a.eval(enviroment);
+                    Object second = b.eval(enviroment);
+                    return Interpreter.callable(expr, function).call2(interpreter, first, second);
+                };
+            }
+            case 3: {
+                Eval a = arguments[0];
+                Eval b = arguments[1];
+                Eval c = arguments[2];
+                return enviroment -> {
+                    Object function = callee.eval(enviroment);
+                    Object first = a.eval(enviroment);
+                    Object second = b.eval(enviroment);
+                    Object third = c.eval(enviroment);
+                    return Interpreter.callable(expr, function).call3(interpreter, first, second, third);
+                };
+            }
+            case 4: {
+                Eval a = arguments[0];
+                Eval b = arguments[1];
+                Eval c = arguments[2];
+                Eval d = arguments[3];
+                return enviroment -> {
+                    Object function = callee.eval(enviroment);
+                    Object first = a.eval(enviroment);
+                    Object second = b.eval(enviroment);
+                    Object third = c.eval(enviroment);
+                    Object fourth = d.eval(enviroment);
+                    return Interpreter.callable(expr, function).call4(interpreter, first, second, third, fourth);
+                };
+            }
+        }
+
+        return enviroment -> {
+            Object function = callee.eval(enviroment);
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].eval(enviroment);
+            }
+            return Interpreter.callable(expr, function).call(interpreter, Arrays.asList(values));
+        };
+    }
+
+    @Override
+    public Eval visitGetExpr(Expr.Get expr) {
+        Eval object = compile(expr.object);
+        return enviroment -> {
+            Object value = object.eval(enviroment);
+            if (value instanceof LoxInstance)
+                return ((LoxInstance) value).get(expr.name);
+            if (value instanceof LoxArray)
+                return ((LoxArray) value).get(expr.name);
+            if (value instanceof LoxMap)
+                return ((LoxMap) value).get(expr.name);
+            if (value instanceof LoxGenerator)
+                return ((LoxGenerator) value).get(expr.name);
+            if (value instanceof LoxFile)
+                return ((LoxFile) value).get(expr.name);
+            throw new RuntimeError(expr.name, "Only instances have properties");
+        };
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitIndexExpr(Expr.Index expr) {
+        Eval object = compile(expr.object);
+        Eval index = compile(expr.index);
+        return enviroment -> {
+            Object value = object.eval(enviroment);
+            Object key = index.eval(enviroment);
+            if (value instanceof LoxArray)
+                return ((LoxArray) value).get(expr.bracket, key);
+            if (value instanceof LoxMap)
+                return ((LoxMap) value).get(key);
+            throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+        };
+    }
+
+    @Override
+    public Eval visitIndexSetExpr(Expr.IndexSet expr) {
+        Eval object = compile(expr.object);
+        Eval index = compile(expr.index);
+        Eval value = compile(expr.value);
+        return enviroment -> {
+            Object target = object.eval(enviroment);
+            Object key = index.eval(enviroment);
+            if (!(target instanceof LoxArray) && !(target instanceof LoxMap)) {
+                throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+            }
+
+            Object result = value.eval(enviroment);
+            if (target instanceof LoxArray) {
+                ((LoxArray) target).set(expr.bracket, key, result);
+            } else {
+                ((LoxMap) target).put(expr.bracket, key, result);
+            }
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return enviroment -> value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return enviroment -> {
+                Object value = left.eval(enviroment);
+                return Interpreter.isTruthy(value) ? value : right.eval(enviroment);
+            };
+        }
+
+        return enviroment -> {
+            Object value = left.eval(enviroment);
+            return !Interpreter.isTruthy(value) ? value : right.eval(enviroment);
+        };
+    }
+
+    @Override
+    public Eval visitSetExpr(Expr.Set expr) {
+        Eval object = compile(expr.object);
+        Eval value = compile(expr.value);
+        return enviroment -> {
+            Object target = object.eval(enviroment);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(expr.name, "Only instances have fields");
+            }
+
+            Object result = value.eval(enviroment);
+            ((LoxInstance) target).set(expr.name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitSuperExpr(Expr.Super expr) {
+        int distance = expr.depth;
+        return enviroment -> {
+            LoxClass superclass = (LoxClass) enviroment.getAt(distance, "super");
+            LoxInstance object = (LoxInstance) enviroment.getAt(distance - 1, "this");
+
+            LoxFunction method = superclass.findMethod(expr.method.lexeme);
+            if (method == null) {
+                throw new RuntimeError(expr.method, "Undefine property '" + expr.method.lexeme + "'.");
+            }
+            return method.bind(object);
+        };
+    }
+
+    @Override
+    public Eval visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth);
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        Token operator = expr.operator;
+        if (expr.operand == TypeInference.Type.NUMBER && operator.type == TokenType.MINUS) {
+            NumberEval value = number(expr.right);
+            return enviroment -> -value.eval(enviroment);
+        }
+
+        Eval right = compile(expr.right);
+        if (operator.type == TokenType.BANG)
+            return enviroment -> !Interpreter.isTruthy(right.eval(enviroment));
+
+        return enviroment -> {
+            Object value = right.eval(enviroment);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double) value;
+        };
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth);
+    }
+
+    private Eval variable(Token name, int distance) {
+        if (distance < 0) {
+            Enviroment globals = interpreter.globals;
+            return enviroment -> globals.get(name);
+        }
+
+        String lexeme = name.lexeme;
+        switch (distance) {
+            case 0:
+                return enviroment -> enviroment.getAt(0, lexeme);
+            case 1:
+                return enviroment -> enviroment.enclosing.getAt(0, lexeme);
+            default:
+                return enviroment -> enviroment.getAt(distance, lexeme);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs scripts sent over a Unix domain socket in a JVM that stays up, so they
+ * don't pay for its startup or a cold JIT. Every connection runs on a thread of
+ * its own, so a slow script doesn't hold up the others, with a fresh
+ * interpreter, or with a fork of a snapshot's interpreter when the daemon was
+ * started with one, so every script sees the prelude's globals and none sees
+ * what another one changed. Each run writes to its own streams, see Lox.
+ *
+ * A client sends the script's absolute path (imports are relative to it), its
+ * source, and the budget limits it wants the run held to (see Budget): the
+ * statements, milliseconds and bytes as longs and the depth as an int, 0 for
+ * none. A limit the daemon was started with is the most any run gets. The
+ * daemon answers with frames: a kind byte, then a length and bytes of stdout or
+ * stderr, or the exit code as the last frame.
+ *
+ * jlox --connect is a client, but it's a JVM that starts for every script.
+ * scripts/jlox-connect speaks the same frames without one.
+ */
+class Daemon {
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+    private static final int EXIT = 3;
+
+    // base is the interpreter scripts are forked from, or null
+    static void serve(Path socket, Interpreter base) throws IOException {
+        Files.deleteIfExists(socket);
+        PrintStream console = System.err;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            // the daemon usually ends with a signal, don't leave the socket behind
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> socket.toFile().delete()));
+            ExecutorService runs = Executors.newCachedThreadPool();
+            for (;;) {
+                SocketChannel client = server.accept();
+                runs.execute(() -> {
+                    try (client) {
+                        run(client, base);
+                    } catch (IOException error) {
+                        // the client went away, the others may not
+                        console.println("jlox daemon: " + error.getMessage());
+                    }
+                });
+            }
+        }
+    }
+
+    private static void run(SocketChannel client, Interpreter base) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        Path file = Paths.get(in.readUTF());
+        byte[] source = new byte[in.readInt()];
+        in.readFully(source);
+        Budget.Limits limits = new Budget.Limits(in.readLong(), in.readLong(), in.readLong(), in.readInt())
+                .within(Budget.Limits.DEFAULT);
+
+        PrintStream scriptOut = new PrintStream(new BufferedOutputStream(new Frames(out, STDOUT)), false);
+        PrintStream scriptErr = new PrintStream(new BufferedOutputStream(new Frames(out, STDERR)), false);
+        int code;
+        try {
+            code = Lox.runIsolated(new String(source, StandardCharsets.UTF_8), file, base, limits, scriptOut,
+                    scriptErr);
+        } catch (RuntimeException | StackOverflowError error) {
+            // what the JVM would have printed before exiting
+            error.printStackTrace(scriptErr);
+            code = 1;
+        } finally {
+            scriptOut.flush();
+            scriptErr.flush();
+        }
+
+        out.writeByte(EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+
+    // sends whatever is written to it as frames of one kind
+    private static class Frames extends OutputStream {
+        private final DataOutputStream out;
+        private final int kind;
+
+        Frames(DataOutputStream out, int kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.writeByte(kind);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    // the client side, returns the script's exit code. the run is held to the
+    // client's -Dlox.budget.* limits.
+    static int connect(Path socket, String script) throws IOException {
+        Path file = Paths.get(script).toAbsolutePath().normalize();
+        // sent as UTF-8, whatever the client's default charset decodes it to
+        String text = new String(Files.readAllBytes(file), Charset.defaultCharset());
+        byte[] source = text.getBytes(StandardCharsets.UTF_8);
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(file.toString());
+            out.writeInt(source.length);
+            out.write(source);
+            Budget.Limits limits = Budget.Limits.DEFAULT;
+            out.writeLong(limits.statements);
+            out.writeLong(limits.millis);
+            out.writeLong(limits.bytes);
+            out.writeInt(limits.depth);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            for (;;) {
+                int kind = in.readByte();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                (kind == STDOUT ? System.out : System.err).write(bytes);
+            }
+        }
+    }
+}
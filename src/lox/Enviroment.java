@@ -1,15 +1,20 @@
 package lox;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Enviroment {
+public class Enviroment implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     final Enviroment enclosing;
 
     private final Map<String, Object> values = new HashMap<>();
     private final List<String> nonAssignedVars = new ArrayList<>();
+    // shared with forks, see Fork
+    private transient boolean frozen = false;
 
     // constructor for the global scope, which ends the chain
     Enviroment() {
@@ -22,6 +27,10 @@ public class Enviroment {
     }
 
     void define(String name, Object value) {
+        if (frozen) {
+            Fork.write(this, Enviroment::copy).define(name, value);
+            return;
+        }
         if (value == null) {
             defineNonAssignedVar(name);
         } else {
@@ -40,27 +49,41 @@ public class Enviroment {
 
     Object getAt(int distance, String name) {
         // return the value at that enviroment
-        return ancestor(distance).values.get(name);
+        return ancestor(distance).readable().values.get(name);
         // theres no need to check because the resolver already found it
     }
 
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        ancestor(distance).writable().values.put(name.lexeme, value);
+    }
+
+    // whether this scope itself declares the name
+    boolean isDefined(String name) {
+        Enviroment scope = readable();
+        return scope.values.containsKey(name) || scope.nonAssignedVars.contains(name);
     }
 
     void defineNonAssignedVar(String name) {
-        nonAssignedVars.add(name);
+        if (frozen) {
+            Fork.write(this, Enviroment::copy).defineNonAssignedVar(name);
+            return;
+        }
+        // redeclaring a variable at the prompt mustn't grow the list
+        if (!nonAssignedVars.contains(name))
+            nonAssignedVars.add(name);
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        Enviroment scope = readable();
+        if (scope.values.containsKey(name.lexeme)) {
+            writable().values.put(name.lexeme, value);
             return;
         }
 
-        if (nonAssignedVars.contains(name.lexeme)) {
-            nonAssignedVars.remove(name.lexeme);
-            values.put(name.lexeme, value);
+        if (scope.nonAssignedVars.contains(name.lexeme)) {
+            scope = writable();
+            scope.nonAssignedVars.remove(name.lexeme);
+            scope.values.put(name.lexeme, value);
             return;
         }
 
@@ -73,17 +96,46 @@ public class Enviroment {
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Enviroment scope = readable();
+        if (scope.values.containsKey(name.lexeme)) {
+            return scope.values.get(name.lexeme);
         }
 
         // check for variable in other scopes.
         if (enclosing != null)
             return enclosing.get(name);
 
-        if (nonAssignedVars.contains(name.lexeme))
+        if (scope.nonAssignedVars.contains(name.lexeme))
             throw new RuntimeError(name, "Unnasigned variable '" + name.lexeme + "'.");
 
         throw new RuntimeError(name, "Undefine variable '" + name.lexeme + "'.");
     }
+
+    // where the variables are read from, inside a fork that's the fork's copy
+    // once it has written to a frozen enviroment
+    private Enviroment readable() {
+        if (frozen) {
+            Enviroment copy = Fork.read(this);
+            if (copy != null)
+                return copy;
+        }
+        return this;
+    }
+
+    private Enviroment writable() {
+        return frozen ? Fork.write(this, Enviroment::copy) : this;
+    }
+
+    private Enviroment copy() {
+        Enviroment copy = new Enviroment(enclosing);
+        copy.values.putAll(values);
+        copy.nonAssignedVars.addAll(nonAssignedVars);
+        return copy;
+    }
+
+    void freeze(List<Object> reachable) {
+        frozen = true;
+        reachable.add(enclosing);
+        reachable.addAll(values.values());
+    }
 }
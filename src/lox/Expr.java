@@ -1,14 +1,20 @@
 package lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Expr {
+abstract class Expr implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   interface Visitor<R> {
+    R visitArgumentExpr(Argument expr);
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
     R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
+    R visitIndexExpr(Index expr);
+    R visitIndexSetExpr(IndexSet expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
     R visitSetExpr(Set expr);
@@ -19,7 +25,25 @@ abstract class Expr {
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+  static class Argument extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Argument(Token name, int index) {
+      this.name = name;
+      this.index = index;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitArgumentExpr(this);
+    }
+
+    final Token name;
+    final int index;
+  }
   static class Assign extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
@@ -32,8 +56,12 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    // filled in after parsing
+    int depth = -1;
   }
   static class Binary extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -48,8 +76,13 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    // filled in after parsing
+    TypeInference.Type operands;
+    LoopInvariants.Slot hoisted;
   }
   static class Call extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
       this.paren = paren;
@@ -64,8 +97,13 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    // filled in after parsing
+    transient LoxCallable checked;
+    transient Inliner.Inline inline;
   }
   static class Get extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Get(Expr object, Token name) {
       this.object = object;
       this.name = name;
@@ -80,6 +118,8 @@ abstract class Expr {
     final Token name;
   }
   static class Grouping extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Grouping(Expr expression) {
       this.expression = expression;
     }
@@ -91,7 +131,47 @@ abstract class Expr {
 
     final Expr expression;
   }
+  static class Index extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    Index(Expr object, Token bracket, Expr index) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+  }
+  static class IndexSet extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+      this.object = object;
+      this.bracket = bracket;
+      this.index = index;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexSetExpr(this);
+    }
+
+    final Expr object;
+    final Token bracket;
+    final Expr index;
+    final Expr value;
+  }
   static class Literal extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Literal(Object value) {
       this.value = value;
     }
@@ -104,6 +184,8 @@ abstract class Expr {
     final Object value;
   }
   static class Logical extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Logical(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -120,6 +202,8 @@ abstract class Expr {
     final Expr right;
   }
   static class Set extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Set(Expr object, Token name, Expr value) {
       this.object = object;
       this.name = name;
@@ -136,6 +220,8 @@ abstract class Expr {
     final Expr value;
   }
   static class Super extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Super(Token keyword, Token method) {
       this.keyword = keyword;
       this.method = method;
@@ -148,8 +234,12 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    // filled in after parsing
+    int depth = -1;
   }
   static class This extends Expr {
+    private static final long serialVersionUID = 1L;
+
     This(Token keyword) {
       this.keyword = keyword;
     }
@@ -160,8 +250,12 @@ abstract class Expr {
     }
 
     final Token keyword;
+    // filled in after parsing
+    int depth = -1;
   }
   static class Unary extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
@@ -174,8 +268,12 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+    // filled in after parsing
+    TypeInference.Type operand;
   }
   static class Variable extends Expr {
+    private static final long serialVersionUID = 1L;
+
     Variable(Token name) {
       this.name = name;
     }
@@ -186,5 +284,7 @@ abstract class Expr {
     }
 
     final Token name;
+    // filled in after parsing
+    int depth = -1;
   }
 }
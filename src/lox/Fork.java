@@ -0,0 +1,86 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * The copy-on-write side of Interpreter.fork(). Forking freezes everything
+ * reachable from the parent's globals: enviroments, instances (classes
+ * included), arrays and maps. Forks share those objects, and reading them costs
+ * a flag check. The first time a fork writes to one, it gets a private copy of
+ * the object's storage, which it then reads and writes instead.
+ *
+ * Only the storage is copied, the shared object stays the one the program sees,
+ * so identity and == are the same in every fork. The copies are looked up by
+ * the thread the fork is running on, forks can run on different threads at
+ * once, but a fork mustn't run on two.
+ */
+class Fork {
+    private static final ThreadLocal<Fork> current = new ThreadLocal<>();
+
+    // frozen object -> this fork's copy of its storage
+    private final Map<Object, Object> copies = new IdentityHashMap<>();
+
+    // makes the fork the one whose copies frozen objects use on this thread,
+    // returns the one to go back to
+    Fork enter() {
+        return switchTo(this);
+    }
+
+    // the same for a fork or none, on a thread that may be running another's
+    static Fork switchTo(Fork fork) {
+        Fork previous = current.get();
+        current.set(fork);
+        return previous;
+    }
+
+    static void exit(Fork previous) {
+        current.set(previous);
+    }
+
+    // the current fork's copy of a frozen object, null if it hasn't written to it
+    @SuppressWarnings("unchecked")
+    static <T> T read(T shared) {
+        Fork fork = current.get();
+        if (fork == null)
+            return null;
+        return (T) fork.copies.get(shared);
+    }
+
+    // the current fork's copy of a frozen object, made on the first write
+    @SuppressWarnings("unchecked")
+    static <T> T write(T shared, UnaryOperator<T> copy) {
+        Fork fork = current.get();
+        if (fork == null)
+            throw new IllegalStateException("Frozen state can only change inside a fork.");
+        return (T) fork.copies.computeIfAbsent(shared, object -> copy.apply((T) object));
+    }
+
+    // marks everything reachable from the globals frozen
+    static void freeze(Enviroment globals) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Object> pending = new ArrayList<>();
+        pending.add(globals);
+        while (!pending.isEmpty()) {
+            Object value = pending.remove(pending.size() - 1);
+            if (value == null || !seen.add(value))
+                continue;
+            if (value instanceof Enviroment) {
+                ((Enviroment) value).freeze(pending);
+            } else if (value instanceof LoxInstance) {
+                ((LoxInstance) value).freeze(pending);
+            } else if (value instanceof LoxFunction) {
+                ((LoxFunction) value).freeze(pending);
+            } else if (value instanceof LoxArray) {
+                ((LoxArray) value).freeze(pending);
+            } else if (value instanceof LoxMap) {
+                ((LoxMap) value).freeze(pending);
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inlines calls to small top-level functions. A function whose whole body
+ * returns a short expression that doesn't call the function itself gets a copy
+ * of that expression in which its parameters read the call's arguments, and the
+ * calls to it by name are marked with the copy. The interpreters still evaluate
+ * the callee, and only use the copy while it is a function made from that
+ * declaration that isn't memoized, see Memo. Reassigning the global, declaring
+ * it again, or memoizing it, falls back to a normal call.
+ *
+ * Runs after TypeInference, the copies keep the types it proved for the body.
+ */
+class Inliner implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    // bodies bigger than this aren't worth the copy
+    private static final int MAX_NODES = 16;
+
+    // what a call is marked with
+    static class Inline {
+        final Stmt.Function declaration;
+        final Expr body;
+
+        private Inline(Stmt.Function declaration, Expr body) {
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        // whether the callee is still the function that was inlined, a memoized
+        // one has to be called to look at its results
+        boolean of(Object callee) {
+            return callee instanceof LoxFunction && ((LoxFunction) callee).isDeclaredBy(declaration)
+                    && ((LoxFunction) callee).memo == null;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // the top-level functions that can be inlined, by name
+    private final Map<String, Inline> inlinable = new HashMap<>();
+
+    void inline(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) statement;
+                Inline inline = copy(function);
+                if (inline != null) {
+                    inlinable.put(function.name.lexeme, inline);
+                } else {
+                    inlinable.remove(function.name.lexeme);
+                }
+            }
+        }
+        if (inlinable.isEmpty())
+            return;
+        walk(statements);
+    }
+
+    private Inline copy(Stmt.Function function) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return))
+            return null;
+        Expr value = ((Stmt.Return) function.body.get(0)).value;
+        if (value == null)
+            return null;
+        try {
+            return new Inline(function, new Copy(function).copy(value));
+        } catch (Unsupported error) {
+            return null;
+        }
+    }
+
+    // copies a body expression, reading the parameters from the call's arguments
+    private static class Copy implements Expr.Visitor<Expr> {
+        private final Stmt.Function function;
+        private int nodes = 0;
+
+        Copy(Stmt.Function function) {
+            this.function = function;
+        }
+
+        Expr copy(Expr expr) {
+            if (++nodes > MAX_NODES)
+                throw new Unsupported();
+            return expr.accept(this);
+        }
+
+        @Override
+        public Expr visitArgumentExpr(Expr.Argument expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            Expr.Binary copy = new Expr.Binary(copy(expr.left), expr.operator, copy(expr.right));
+            copy.operands = expr.operands;
+            return copy;
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            // a recursive function isn't small, whatever its size
+            if (expr.callee instanceof Expr.Variable
+                    && ((Expr.Variable) expr.callee).name.lexeme.equals(function.name.lexeme))
+                throw new Unsupported();
+            List<Expr> arguments = new ArrayList<>();
+            for (Expr argument : expr.arguments) {
+                arguments.add(copy(argument));
+            }
+            return new Expr.Call(copy(expr.callee), expr.paren, arguments);
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            return new Expr.Get(copy(expr.object), expr.name);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(copy(expr.expression));
+        }
+
+        @Override
+        public Expr visitIndexExpr(Expr.Index expr) {
+            return new Expr.Index(copy(expr.object), expr.bracket, copy(expr.index));
+        }
+
+        @Override
+        public Expr visitIndexSetExpr(Expr.IndexSet expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(copy(expr.left), expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            Expr.Unary copy = new Expr.Unary(expr.operator, copy(expr.right));
+            copy.operand = expr.operand;
+            return copy;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            // a top-level function only sees its parameters and globals, and a
+            // global reads the same from anywhere
+            if (expr.depth < 0)
+                return expr;
+            int index = -1;
+            for (int i = 0; i < function.params.size(); i++) {
+                if (function.params.get(i).lexeme.equals(expr.name.lexeme))
+                    index = i;
+            }
+            if (expr.depth != 0 || index < 0)
+                throw new Unsupported();
+            return new Expr.Argument(expr.name, index);
+        }
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void walk(Expr expr) {
+        if (expr != null)
+            expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            walk(method.body);
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            walk(method.body);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+        walk(stmt.condition);
+        walk(stmt.increment);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null)
+            stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        walk(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        walk(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+
+        // only calls by a global name whose argument count matches, anything else
+        // is left to the normal call and its errors
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable) expr.callee).depth < 0) {
+            Inline inline = inlinable.get(((Expr.Variable) expr.callee).name.lexeme);
+            if (inline != null && inline.declaration.params.size() == expr.arguments.size())
+                expr.inline = inline;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        walk(expr.object);
+        walk(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        walk(expr.object);
+        walk(expr.index);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+}
@@ -1,5 +1,7 @@
 package lox;
 
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -16,36 +18,111 @@ import lox.Stmt.Var;
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // store here so that it stays in memory as long as the interpreter its still
     // running
-    final Enviroment globals = new Enviroment();
-    private Enviroment enviroment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Enviroment globals;
+    private Enviroment enviroment;
+    final ModuleLoader modules = new ModuleLoader(this);
+    // where print writes, and whether expression statements print their values
+    // as they do at the prompt, both set by Lox for each run
+    PrintStream out = System.out;
+    boolean isPromptMode = false;
+    // the function whose body is running, loop iterations count towards its hotness
+    LoxFunction running = null;
+    // what each run of this interpreter may use, and what's left of it for the
+    // current run, null when there are no limits
+    final Budget.Limits limits;
+    Budget budget = null;
+    // the arguments of the inlined call whose body is being evaluated, see Inliner
+    Object[] inlined = null;
+    // the frame of the innermost running loop that keeps invariants, see
+    // LoopInvariants
+    Object[] invariants = null;
+    // null unless -Dlox.engine=closure picks the closure-compiling engine. forks
+    // and workers always walk the tree, the bodies the closure compiler left on the
+    // declarations they share belong to the interpreter they were forked from
+    final ClosureCompiler compiler;
+    // the copies of frozen state this interpreter has written to, null unless it's
+    // a fork
+    private final Fork fork;
+    // once forked, the globals are shared and this interpreter can't run again
+    private boolean frozen = false;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+        this(Budget.Limits.DEFAULT);
+    }
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) System.currentTimeMillis();
-            }
+    Interpreter(Budget.Limits limits) {
+        this(new Enviroment(), null, "closure".equals(System.getProperty("lox.engine")), limits);
+        NativeFunction.defineAll(globals);
+    }
 
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    // starts from globals that already hold a program's declarations, see Snapshot.
+    // they hold the natives they were saved with, only ones added since are defined.
+    Interpreter(Enviroment globals) {
+        this(globals, null, "closure".equals(System.getProperty("lox.engine")), Budget.Limits.DEFAULT);
+        NativeFunction.defineMissing(globals);
+    }
+
+    private Interpreter(Enviroment globals, Fork fork, boolean compiling, Budget.Limits limits) {
+        this.globals = globals;
+        this.enviroment = globals;
+        this.fork = fork;
+        this.limits = limits;
+        compiler = compiling ? new ClosureCompiler(this) : null;
+    }
+
+    // a new interpreter that starts from this one's globals and modules without
+    // copying them, it only copies what it writes to, see Fork, and runs within
+    // limits of its own. forks can run side by side, this interpreter can't run
+    // anything afterwards.
+    Interpreter fork(Budget.Limits limits) {
+        if (fork != null)
+            throw new IllegalStateException("A fork can't be forked.");
+        if (!frozen) {
+            Fork.freeze(globals);
+            frozen = true;
+        }
+        Interpreter forked = new Interpreter(globals, new Fork(), false, limits);
+        for (Path path : modules.executed()) {
+            forked.modules.markExecuted(path);
+        }
+        return forked;
+    }
+
+    // an interpreter for another thread to call this one's functions on while this
+    // one waits, see Parallel, or to keep a suspended generator's state in, see
+    // LoxGenerator. it has its own call state and walks the tree, the globals and
+    // the fork's copies are shared.
+    Interpreter worker() {
+        Interpreter worker = new Interpreter(globals, fork, false, limits);
+        worker.out = out;
+        worker.isPromptMode = isPromptMode;
+        return worker;
+    }
+
+    // makes the fork this interpreter reads through the current thread's, returns
+    // the one to go back to with Fork.exit()
+    Fork enterFork() {
+        return Fork.switchTo(fork);
     }
 
     public void interpret(List<Stmt> statements) {
+        if (frozen)
+            throw new IllegalStateException("A forked interpreter can't run any more code.");
+        Fork previous = fork == null ? null : fork.enter();
+        budget = Budget.start(limits);
         try {
+            if (compiler != null) {
+                compiler.compile(statements).exec(globals);
+                return;
+            }
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            if (fork != null)
+                Fork.exit(previous);
         }
     }
 
@@ -101,7 +178,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public Object visitSuperExpr(Expr.Super expr) {
         // get the distance to the variable
-        int distance = locals.get(expr);
+        int distance = expr.depth;
         LoxClass superclass = (LoxClass) enviroment.getAt(distance, "super");
         LoxInstance object = (LoxInstance) enviroment.getAt(distance - 1, "this");
 
@@ -116,7 +193,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth);
     }
 
     @Override
@@ -125,6 +202,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // evaluate the expression first
         Object right = evaluate(expr.right);
 
+        // the type inference proved what the operand is, see TypeInference
+        if (expr.operand == TypeInference.Type.NUMBER && expr.operator.type == TokenType.MINUS)
+            return -(double) right;
+        if (expr.operand == TypeInference.Type.BOOLEAN && expr.operator.type == TokenType.BANG)
+            return !(boolean) right;
+
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
@@ -136,13 +219,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double)
             return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumberOperands(Token operator,
+    static void checkNumberOperands(Token operator,
             Object left, Object right) {
         if (left instanceof Double && right instanceof Double)
             return;
@@ -150,7 +233,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -158,7 +241,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
@@ -167,7 +250,53 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static Object plus(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        if (left instanceof String && right instanceof Double) {
+            return (String) left + (String) stringify(right);
+        }
+        if (left instanceof Double && right instanceof String) {
+            return (String) stringify(left) + (String) right;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+    }
+
+    // a binary operator on numbers, without the checks. == compares the way
+    // Double.equals() does, like isEqual().
+    static Object arithmetic(TokenType operator, double left, double right) {
+        switch (operator) {
+            case BANG_EQUAL:
+                return Double.compare(left, right) != 0;
+            case EQUAL_EQUAL:
+                return Double.compare(left, right) == 0;
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            case LESS_EQUAL:
+                return left <= right;
+            case MINUS:
+                return left - right;
+            case PLUS:
+                return left + right;
+            case SLASH:
+                return left / right;
+            case STAR:
+                return left * right;
+            default:
+                // unreachable
+                return null;
+        }
+    }
+
+    static String stringify(Object object) {
         if (object == null)
             return "nil";
 
@@ -182,6 +311,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        if (object instanceof LoxArray) {
+            return ((LoxArray) object).get(expr.bracket, index);
+        }
+
+        if (object instanceof LoxMap) {
+            return ((LoxMap) object).get(index);
+        }
+
+        throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        if (!(object instanceof LoxArray) && !(object instanceof LoxMap)) {
+            throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+        }
+
+        Object value = evaluate(expr.value);
+        if (object instanceof LoxArray) {
+            ((LoxArray) object).set(expr.bracket, index, value);
+        } else {
+            ((LoxMap) object).put(expr.bracket, index, value);
+        }
+        return value;
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -192,11 +355,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private void execute(Stmt stmt) {
+        if (budget != null)
+            budget.statements++;
         stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // a generator's worker runs its body a statement at a time, and keeps no
+    // enviroment of its own in between, see LoxGenerator
+    void execute(Stmt stmt, Enviroment enviroment) {
+        this.enviroment = enviroment;
+        execute(stmt);
+    }
+
+    Object evaluate(Expr expr, Enviroment enviroment) {
+        this.enviroment = enviroment;
+        return evaluate(expr);
     }
 
     void executeBlock(List<Stmt> statements, Enviroment enviroment) {
@@ -216,6 +389,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // the resolver left these out of the distances, no enviroment needed
+        if (stmt.declaresNothing) {
+            for (Stmt statement : stmt.statements)
+                execute(statement);
+            return null;
+        }
+
         executeBlock(stmt.statements, new Enviroment(enviroment));
         return null;
     }
@@ -274,8 +454,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         Object value = evaluate(stmt.expression);
-        if (Lox.isPromptMode)
-            System.out.println(stringify(value));
+        if (isPromptMode)
+            out.println(stringify(value));
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Enviroment previous = this.enviroment;
+        Object[] enclosing = invariants;
+        if (stmt.invariants > 0)
+            invariants = LoopInvariants.frame(enclosing, stmt.invariants);
+        try {
+            // the loop variable lives in one enviroment for the whole loop
+            if (stmt.initializer instanceof Stmt.Var)
+                this.enviroment = new Enviroment(previous);
+            if (stmt.initializer != null)
+                execute(stmt.initializer);
+
+            while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+                execute(stmt.body);
+                if (running != null)
+                    running.hotness++;
+                if (budget != null)
+                    budget.check(stmt.keyword);
+                if (stmt.captured) {
+                    // closures made by this iteration keep their own copy of the variable
+                    String name = ((Stmt.Var) stmt.initializer).name.lexeme;
+                    Enviroment next = new Enviroment(previous);
+                    next.define(name, this.enviroment.getAt(0, name));
+                    this.enviroment = next;
+                }
+                if (stmt.increment != null)
+                    evaluate(stmt.increment);
+            }
+        } finally {
+            this.enviroment = previous;
+            invariants = enclosing;
+        }
         return null;
     }
 
@@ -308,10 +524,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        ModuleLoader.Module module = stmt.module;
+        // a module only runs the first time one of its imports is reached
+        if (module.executed)
+            return null;
+        module.executed = true;
+        // its declarations go straight into the global scope
+        executeBlock(module.statements, globals);
+        return null;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
@@ -324,6 +552,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new Return(value);
     }
 
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        // LoxGenerator runs the statements with yields in them itself
+        throw new IllegalStateException("A yield can only run in a generator's body.");
+    }
+
     @Override
     public Void visitVarStmt(Var stmt) {
         Object value = null;
@@ -336,8 +570,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+        Object[] enclosing = invariants;
+        if (stmt.invariants > 0)
+            invariants = LoopInvariants.frame(enclosing, stmt.invariants);
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                execute(stmt.body);
+                if (running != null)
+                    running.hotness++;
+                if (budget != null)
+                    budget.check(stmt.keyword);
+            }
+        } finally {
+            invariants = enclosing;
         }
 
         return null;
@@ -349,9 +594,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object value = evaluate(expr.value);
 
         // check the distance
-        Integer distance = locals.get(expr);
-        // check to see if its global(the resolver returns null for globals)
-        if (distance != null) {
+        int distance = expr.depth;
+        // check to see if its global(the resolver leaves -1 for globals)
+        if (distance >= 0) {
             enviroment.assignAt(distance, expr.name, value);
         } else {
             globals.assign(expr.name, value);
@@ -362,14 +607,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        // look up resolved distance in the map
-        Integer distance = locals.get(expr);
-        // global variables are null, we dont resolve them
-        if (distance != null) {
+    private Object lookUpVariable(Token name, int distance) {
+        // global variables are -1, we dont resolve them
+        if (distance >= 0) {
             return enviroment.getAt(distance, name.lexeme);
         } else {
             return globals.get(name);
@@ -377,11 +620,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // an invariant of a running loop is only computed the first time, see
+        // LoopInvariants
+        LoopInvariants.Slot slot = expr.hoisted;
+        if (slot != null) {
+            Object[] frame = slot.frame(invariants);
+            Object value = frame[slot.index];
+            if (value == null)
+                frame[slot.index] = value = binary(expr);
+            return value;
+        }
+        return binary(expr);
+    }
 
+    private Object binary(Expr.Binary expr) {
         // evaluate left to right
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        // both operands are proven numbers, see TypeInference
+        if (expr.operands == TypeInference.Type.NUMBER)
+            return arithmetic(expr.operator.type, (double) left, (double) right);
+        if (expr.operands == TypeInference.Type.STRING && expr.operator.type == TokenType.PLUS)
+            return (String) left + (String) right;
+
         switch (expr.operator.type) {
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -403,19 +665,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 checkNumberOperands(expr.operator, left, right);
                 return (double) left - (double) right;
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
-                if (left instanceof String && right instanceof Double) {
-                    return (String) left + (String) stringify(right);
-                }
-                if (left instanceof Double && right instanceof String) {
-                    return (String) stringify(left) + (String) right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                return plus(expr.operator, left, right);
             case SLASH:
                 checkNumberOperands(expr.operator, left, right);
                 return (double) left / (double) right;
@@ -433,23 +683,95 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // evaluate the expr for the callee
         Object callee = evaluate(expr.callee);
 
-        // evaluate each of the arguments expressions.
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        // an inlined body doesn't count towards the budget's depth, so it's only
+        // used without one
+        Inliner.Inline inline = expr.inline;
+        if (inline != null && budget == null && inline.of(callee))
+            return inline(inline, expr.arguments);
+
+        try {
+            return call(expr, callee);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
         }
+    }
+
+    private Object inline(Inliner.Inline inline, List<Expr> arguments) {
+        Object[] values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(arguments.get(i));
+        }
+        Object[] caller = inlined;
+        inlined = values;
+        try {
+            return evaluate(inline.body);
+        } finally {
+            inlined = caller;
+        }
+    }
+
+    @Override
+    public Object visitArgumentExpr(Expr.Argument expr) {
+        return inlined[expr.index];
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        // evaluate each of the arguments expressions, up to four of them are passed
+        // as they are instead of in a list
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return callable(expr, callee).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return callable(expr, callee).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return callable(expr, callee).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return callable(expr, callee).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                return callable(expr, callee).call4(this, a, b, c, d);
+            }
+        }
+
+        List<Object> values = new ArrayList<>();
+        for (Expr argument : arguments) {
+            values.add(evaluate(argument));
+        }
+        return callable(expr, callee).call(this, values);
+    }
+
+    // checks that the callee can be called with the call's arguments. the call
+    // remembers the last callee that passed, so calling the same function from
+    // the same place again skips the arity check.
+    static LoxCallable callable(Expr.Call expr, Object callee) {
+        if (callee != null && callee == expr.checked)
+            return expr.checked;
 
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes");
         }
 
         LoxCallable function = (LoxCallable) callee;
-        if (arguments.size() != function.arity()) {
+        if (expr.arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    expr.arguments.size() + ".");
         }
-        return function.call(this, arguments);
+        expr.checked = function;
+        return function;
     }
 
     @Override
@@ -461,6 +783,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             return ((LoxInstance) object).get(expr.name);
         }
 
+        if (object instanceof LoxArray) {
+            return ((LoxArray) object).get(expr.name);
+        }
+
+        if (object instanceof LoxMap) {
+            return ((LoxMap) object).get(expr.name);
+        }
+
+        if (object instanceof LoxGenerator) {
+            return ((LoxGenerator) object).get(expr.name);
+        }
+
+        if (object instanceof LoxFile) {
+            return ((LoxFile) object).get(expr.name);
+        }
+
         throw new RuntimeError(expr.name, "Only instances have properties");
     }
 
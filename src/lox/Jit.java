@@ -0,0 +1,515 @@
+package lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.Bytecode.*;
+
+/**
+ * Compiles hot functions to JVM bytecode.
+ * Only numeric code is handled: every parameter and local has to hold a number,
+ * and the body may use arithmetic, comparisons, if, while, for, return and calls
+ * to the function itself. Such a function becomes a static method on doubles in
+ * a hidden class, so the JVM's own compilers take it from there. Anything else
+ * keeps running in the interpreter.
+ */
+class Jit implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    // -Dlox.jit=false keeps everything in the interpreter
+    static final boolean ENABLED = !"false".equals(System.getProperty("lox.jit"));
+    // calls plus loop iterations a function runs interpreted before it's compiled
+    static final int THRESHOLD = 1000;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    // hidden classes have to live in the package of the lookup defining them
+    private static final String NAME = "lox/JitCode$Compiled";
+    // jumps only reach this far
+    private static final int MAX_CODE = Short.MAX_VALUE;
+
+    // thrown when the function uses something the compiler doesn't handle
+    private static class Unsupported extends RuntimeException {
+    }
+
+    private final Stmt.Function function;
+    private final Bytecode bytecode = new Bytecode();
+    private final String descriptor;
+    private Bytecode.Method code;
+    // compile-time scopes, from names to local slots
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+    private int slots = 0;
+
+    private Jit(Stmt.Function function) {
+        this.function = function;
+        this.descriptor = "(" + "D".repeat(function.params.size()) + ")D";
+    }
+
+    // returns null when the function can't be compiled
+    static JitCode compile(Stmt.Function function) {
+        if (completesNormally(function.body))
+            return null;
+        try {
+            byte[] bytes = new Jit(function).generate();
+            MethodHandles.Lookup compiled = lookup.defineHiddenClass(bytes, true);
+            return (JitCode) compiled.findConstructor(compiled.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Unsupported error) {
+            return null;
+        } catch (Throwable error) {
+            // a class the jvm won't load is a bug here, but the interpreter can
+            // still run the function
+            return null;
+        }
+    }
+
+    /*
+     * a function that can fall off the end of its body returns nil, which the
+     * compiled code has no way to represent, so only functions that always reach a
+     * return are compiled. loops count as completing, whatever their condition.
+     */
+    private static boolean completesNormally(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!completesNormally(statement))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean completesNormally(Stmt statement) {
+        if (statement instanceof Stmt.Return)
+            return false;
+        if (statement instanceof Stmt.Block)
+            return completesNormally(((Stmt.Block) statement).statements);
+        if (statement instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If) statement;
+            return branch.elseBranch == null || completesNormally(branch.thenBranch)
+                    || completesNormally(branch.elseBranch);
+        }
+        return true;
+    }
+
+    private byte[] generate() {
+        Bytecode.Method init = bytecode.method("<init>", "()V", false, 1);
+        init.local(ALOAD, 0, 1);
+        init.ref(INVOKESPECIAL, bytecode.methodRef(OBJECT, "<init>", "()V"), -1);
+        init.op(RETURN, 0);
+        init.end();
+
+        // the bridges keep the unboxed arguments in byte-sized local slots too
+        if (function.params.size() * 2 + 2 > 255)
+            throw new Unsupported();
+        bridges();
+
+        beginScope();
+        for (Token param : function.params) {
+            declare(param);
+        }
+        code = bytecode.method("run", descriptor, true, slots);
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+        endScope();
+        // never reached, but the verifier won't let code run off the end
+        code.op(DCONST_0, 2);
+        code.op(DRETURN, -2);
+        if (code.size() > MAX_CODE)
+            throw new Unsupported();
+        code.end();
+
+        return bytecode.toClass(NAME, OBJECT, "lox/JitCode");
+    }
+
+    /*
+     * the bridges unbox the arguments and run the static method, or hand back DEOPT
+     * as soon as one of them isn't a number. call(List) reads them from the list,
+     * and for up to four parameters the fixed-arity entry point takes them as its
+     * own parameters.
+     */
+    private void bridges() {
+        int arity = function.params.size();
+        bridge(bytecode.method("call", "(Ljava/util/List;)Ljava/lang/Object;", false, 2), true);
+        if (arity <= 4) {
+            String parameters = "Ljava/lang/Object;".repeat(arity);
+            bridge(bytecode.method("call" + arity, "(" + parameters + ")Ljava/lang/Object;", false, arity + 1), false);
+        }
+    }
+
+    private void bridge(Bytecode.Method bridge, boolean fromList) {
+        int arity = function.params.size();
+        // the unboxed arguments go after the bridge's own parameters
+        int unboxed = fromList ? 2 : arity + 1;
+        Bytecode.Label deopt = new Bytecode.Label();
+        int get = bytecode.interfaceMethodRef("java/util/List", "get", "(I)Ljava/lang/Object;");
+        for (int i = 0; i < arity; i++) {
+            if (fromList) {
+                bridge.local(ALOAD, 1, 1);
+                bridge.ref(LDC_W, bytecode.integerConstant(i), 1);
+                bridge.invokeInterface(get, 1, -1);
+            } else {
+                bridge.local(ALOAD, i + 1, 1);
+            }
+            bridge.op(DUP, 1);
+            bridge.ref(INSTANCEOF, bytecode.classRef(DOUBLE), 0);
+            bridge.jump(IFEQ, deopt, -1);
+            bridge.ref(CHECKCAST, bytecode.classRef(DOUBLE), 0);
+            bridge.ref(INVOKEVIRTUAL, bytecode.methodRef(DOUBLE, "doubleValue", "()D"), 1);
+            bridge.local(DSTORE, unboxed + i * 2, -2);
+        }
+        for (int i = 0; i < arity; i++) {
+            bridge.local(DLOAD, unboxed + i * 2, 2);
+        }
+        bridge.ref(INVOKESTATIC, bytecode.methodRef(NAME, "run", descriptor), 2 - arity * 2);
+        bridge.ref(INVOKESTATIC, bytecode.methodRef(DOUBLE, "valueOf", "(D)Ljava/lang/Double;"), -1);
+        bridge.op(ARETURN, -1);
+
+        // every jump here leaves the argument that failed the check on the stack
+        bridge.bind(deopt);
+        bridge.op(POP, 0);
+        bridge.ref(GETSTATIC, bytecode.fieldRef("lox/JitCode", "DEOPT", "Ljava/lang/Object;"), 0);
+        bridge.op(ARETURN, -1);
+        bridge.end();
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private int declare(Token name) {
+        int slot = slots;
+        slots += 2;
+        if (slots > 255)
+            throw new Unsupported();
+        scopes.get(scopes.size() - 1).put(name.lexeme, slot);
+        return slot;
+    }
+
+    // the slot of a local, or -1 for a global
+    private int slot(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme);
+            if (slot != null)
+                return slot;
+        }
+        return -1;
+    }
+
+    /*
+     * conditions are compiled into jumps rather than values: branch() jumps to
+     * target when the condition is as truthy as when says, and falls through
+     * otherwise. only comparisons, !, and, or, and the boolean literals qualify,
+     * anything whose truthiness would depend on a number isn't compiled.
+     */
+    private void branch(Expr condition, Bytecode.Label target, boolean when) {
+        if (condition instanceof Expr.Grouping) {
+            branch(((Expr.Grouping) condition).expression, target, when);
+        } else if (condition instanceof Expr.Literal && ((Expr.Literal) condition).value instanceof Boolean) {
+            if ((Boolean) ((Expr.Literal) condition).value == when)
+                code.jump(GOTO, target, 0);
+        } else if (condition instanceof Expr.Unary && ((Expr.Unary) condition).operator.type == TokenType.BANG) {
+            branch(((Expr.Unary) condition).right, target, !when);
+        } else if (condition instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) condition;
+            // and jumps early on false, or on true
+            boolean shortCircuit = logical.operator.type == TokenType.OR;
+            if (shortCircuit == when) {
+                branch(logical.left, target, when);
+                branch(logical.right, target, when);
+            } else {
+                Bytecode.Label skip = new Bytecode.Label();
+                branch(logical.left, skip, !when);
+                branch(logical.right, target, when);
+                code.bind(skip);
+            }
+        } else if (condition instanceof Expr.Binary) {
+            compare((Expr.Binary) condition, target, when);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void compare(Expr.Binary expr, Bytecode.Label target, boolean when) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        int jump;
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                // equality is Double.equals(), like isEqual() in the interpreter
+                code.ref(INVOKESTATIC, bytecode.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+                boolean equal = expr.operator.type == TokenType.EQUAL_EQUAL;
+                code.jump(equal == when ? IFEQ : IFNE, target, -1);
+                return;
+            // nan compares false either way, so > and >= treat it as less and < and <=
+            // as greater, the way javac compiles them
+            case GREATER:
+                code.op(DCMPL, -3);
+                jump = when ? IFGT : IFLE;
+                break;
+            case GREATER_EQUAL:
+                code.op(DCMPL, -3);
+                jump = when ? IFGE : IFLT;
+                break;
+            case LESS:
+                code.op(DCMPG, -3);
+                jump = when ? IFLT : IFGE;
+                break;
+            case LESS_EQUAL:
+                code.op(DCMPG, -3);
+                jump = when ? IFLE : IFGT;
+                break;
+            default:
+                throw new Unsupported();
+        }
+        code.jump(jump, target, -1);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        code.op(POP2, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Bytecode.Label elseBranch = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        branch(stmt.condition, elseBranch, false);
+        stmt.thenBranch.accept(this);
+        code.jump(GOTO, end, 0);
+        code.bind(elseBranch);
+        if (stmt.elseBranch != null)
+            stmt.elseBranch.accept(this);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Bytecode.Label top = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        code.bind(top);
+        branch(stmt.condition, end, false);
+        stmt.body.accept(this);
+        code.jump(GOTO, top, 0);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Bytecode.Label top = new Bytecode.Label();
+        Bytecode.Label end = new Bytecode.Label();
+        // nothing compiled here makes a closure, so the loop variable can't be
+        // captured and one slot does for every iteration
+        beginScope();
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+        code.bind(top);
+        if (stmt.condition != null)
+            branch(stmt.condition, end, false);
+        stmt.body.accept(this);
+        if (stmt.increment != null) {
+            stmt.increment.accept(this);
+            code.op(POP2, -2);
+        }
+        code.jump(GOTO, top, 0);
+        code.bind(end);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null)
+            throw new Unsupported();
+        stmt.value.accept(this);
+        code.op(DRETURN, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null)
+            throw new Unsupported();
+        stmt.initializer.accept(this);
+        code.local(DSTORE, declare(stmt.name), -2);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        throw new Unsupported();
+    }
+
+    // expressions are compiled to code that leaves a double on the stack
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        int slot = slot(expr.name);
+        if (slot < 0)
+            throw new Unsupported();
+        expr.value.accept(this);
+        code.op(DUP2, 2);
+        code.local(DSTORE, slot, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        int operation;
+        switch (expr.operator.type) {
+            case PLUS:
+                operation = DADD;
+                break;
+            case MINUS:
+                operation = DSUB;
+                break;
+            case STAR:
+                operation = DMUL;
+                break;
+            case SLASH:
+                operation = DDIV;
+                break;
+            default:
+                throw new Unsupported();
+        }
+        expr.left.accept(this);
+        expr.right.accept(this);
+        code.op(operation, -2);
+        return null;
+    }
+
+    // only calls of the function itself, by its global name. the caller checks
+    // that the name still refers to this function before running compiled code.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable))
+            throw new Unsupported();
+        Token callee = ((Expr.Variable) expr.callee).name;
+        if (!callee.lexeme.equals(function.name.lexeme) || slot(callee) >= 0)
+            throw new Unsupported();
+        if (expr.arguments.size() != function.params.size())
+            throw new Unsupported();
+
+        for (Expr argument : expr.arguments) {
+            argument.accept(this);
+        }
+        code.ref(INVOKESTATIC, bytecode.methodRef(NAME, "run", descriptor), 2 - expr.arguments.size() * 2);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (!(expr.value instanceof Double))
+            throw new Unsupported();
+        double value = (double) expr.value;
+        if (Double.doubleToRawLongBits(value) == 0) {
+            code.op(DCONST_0, 2);
+        } else {
+            code.ref(LDC2_W, bytecode.doubleConstant(value), 2);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type != TokenType.MINUS)
+            throw new Unsupported();
+        expr.right.accept(this);
+        code.op(DNEG, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int slot = slot(expr.name);
+        if (slot < 0)
+            throw new Unsupported();
+        code.local(DLOAD, slot, 2);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        throw new Unsupported();
+    }
+}
@@ -0,0 +1,36 @@
+package lox;
+
+import java.util.List;
+
+// what the jit hands back for a compiled function, see Jit.
+
+interface JitCode {
+    // returned instead of a result when the arguments break the compiled code's
+    // assumptions, the call is then run by the interpreter
+    Object DEOPT = new Object();
+
+    Object call(List<Object> arguments);
+
+    // a compiled function with up to four parameters also implements the entry
+    // point for its arity, LoxFunction never calls the others
+
+    default Object call0() {
+        return DEOPT;
+    }
+
+    default Object call1(Object a) {
+        return DEOPT;
+    }
+
+    default Object call2(Object a, Object b) {
+        return DEOPT;
+    }
+
+    default Object call3(Object a, Object b, Object c) {
+        return DEOPT;
+    }
+
+    default Object call4(Object a, Object b, Object c, Object d) {
+        return DEOPT;
+    }
+}
@@ -0,0 +1,388 @@
+package lox;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the operators in a loop whose value can't change while the loop runs,
+ * so it's only computed once per run. They are built from literals, operators
+ * and variables the loop neither assigns nor declares. A global only counts in
+ * a loop that makes no calls, since any function can assign it. The same goes
+ * for a local that some nested function assigns to.
+ *
+ * A hoisted operator is still computed where it was, the first time it's
+ * reached in a run of the loop, and the loop keeps the value for the rest of
+ * the run. Its errors happen where they did, and a loop that never reaches it
+ * doesn't compute it. Each run of a loop with invariants gets a frame to keep
+ * them in, see frame().
+ */
+class LoopInvariants implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    // where a hoisted operator's value is kept, in the frame of the loop that
+    // owns it, which is up frames out from the innermost one
+    static class Slot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int up;
+        final int index;
+
+        private Slot(int up, int index) {
+            this.up = up;
+            this.index = index;
+        }
+
+        Object[] frame(Object[] innermost) {
+            Object[] frame = innermost;
+            for (int i = 0; i < up; i++) {
+                frame = (Object[]) frame[0];
+            }
+            return frame;
+        }
+    }
+
+    // the frame for a run of a loop, it keeps the enclosing loop's first. frames
+    // are only made by the loops of the function that's running, so counting out
+    // from the innermost one never reaches a caller's.
+    static Object[] frame(Object[] enclosing, int invariants) {
+        Object[] frame = new Object[invariants + 1];
+        frame[0] = enclosing;
+        return frame;
+    }
+
+    private static class Loop {
+        final Set<String> assigned = new HashSet<>();
+        final Set<String> declared = new HashSet<>();
+        boolean calls = false;
+        final List<Expr.Binary> hoisted = new ArrayList<>();
+        // for each hoisted operator, the loops between it and this one
+        final List<List<Loop>> inside = new ArrayList<>();
+    }
+
+    private final Map<Stmt, Loop> loops = new IdentityHashMap<>();
+    // the locals functions assign to from outside
+    private final Set<String> closureAssigned = new HashSet<>();
+    // the first walk finds what each loop does, the second hoists
+    private boolean scanning;
+    // the loops being walked through. while scanning, the ones around a function
+    // see what it does, while hoisting, only those in the same function count.
+    private List<Loop> open = new ArrayList<>();
+    // the scopes the current function has opened, an assignment that's further out
+    // is to a variable it closes over
+    private int scopes = 0;
+
+    void hoist(List<Stmt> statements) {
+        scanning = true;
+        walk(statements);
+        scanning = false;
+        walk(statements);
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void walk(Expr expr) {
+        if (expr != null)
+            expr.accept(this);
+    }
+
+    private void declare(Token name) {
+        for (Loop loop : open) {
+            loop.declared.add(name.lexeme);
+        }
+    }
+
+    private boolean invariant(Expr expr, Loop loop) {
+        if (expr instanceof Expr.Literal)
+            return true;
+        if (expr instanceof Expr.Grouping)
+            return invariant(((Expr.Grouping) expr).expression, loop);
+        if (expr instanceof Expr.Unary)
+            return invariant(((Expr.Unary) expr).right, loop);
+        if (expr instanceof Expr.Binary)
+            return invariant(((Expr.Binary) expr).left, loop) && invariant(((Expr.Binary) expr).right, loop);
+        if (expr instanceof Expr.Logical)
+            return invariant(((Expr.Logical) expr).left, loop) && invariant(((Expr.Logical) expr).right, loop);
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            String name = variable.name.lexeme;
+            if (loop.assigned.contains(name) || loop.declared.contains(name))
+                return false;
+            if (variable.depth < 0)
+                return !loop.calls;
+            return !loop.calls || !closureAssigned.contains(name);
+        }
+        return false;
+    }
+
+    // walks a loop and returns how many invariants it keeps
+    private int loop(Stmt stmt, Stmt initializer, Expr condition, Stmt body, Expr increment) {
+        Loop loop;
+        if (scanning) {
+            loop = new Loop();
+            loops.put(stmt, loop);
+        } else {
+            loop = loops.get(stmt);
+        }
+
+        // the initializer runs once per run of the loop, what it declares or assigns
+        // can't be invariant. the loop's frame is already there when it runs, so
+        // what it hoists into an enclosing loop counts this one on the way out.
+        open.add(loop);
+        if (initializer != null)
+            initializer.accept(this);
+        walk(condition);
+        body.accept(this);
+        walk(increment);
+        open.remove(open.size() - 1);
+
+        if (scanning)
+            return 0;
+        // the loops inside are done, only the ones that keep invariants make frames
+        for (int i = 0; i < loop.hoisted.size(); i++) {
+            int up = 0;
+            for (Loop inner : loop.inside.get(i)) {
+                if (!inner.hoisted.isEmpty())
+                    up++;
+            }
+            loop.hoisted.get(i).hoisted = new Slot(up, i + 1);
+        }
+        return loop.hoisted.size();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.declaresNothing)
+            scopes++;
+        walk(stmt.statements);
+        if (!stmt.declaresNothing)
+            scopes--;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        walk(stmt.superclass);
+        for (Stmt.Function method : stmt.methods) {
+            function(method);
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            function(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        if (scoped)
+            scopes++;
+        stmt.invariants = loop(stmt, stmt.initializer, stmt.condition, stmt.body, stmt.increment);
+        if (scoped)
+            scopes--;
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        function(stmt);
+        return null;
+    }
+
+    private void function(Stmt.Function function) {
+        for (Token param : function.params) {
+            declare(param);
+        }
+        int enclosingScopes = scopes;
+        List<Loop> enclosingLoops = open;
+        scopes = 1;
+        if (!scanning)
+            open = new ArrayList<>();
+        walk(function.body);
+        scopes = enclosingScopes;
+        open = enclosingLoops;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        walk(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null)
+            stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        walk(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        walk(stmt.initializer);
+        declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.invariants = loop(stmt, null, stmt.condition, stmt.body, null);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        // the caller runs until the generator is resumed, it can do what a call can
+        if (scanning) {
+            for (Loop loop : open) {
+                loop.calls = true;
+            }
+        }
+        walk(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        walk(expr.value);
+        if (scanning) {
+            for (Loop loop : open) {
+                loop.assigned.add(expr.name.lexeme);
+            }
+            if (expr.depth >= scopes)
+                closureAssigned.add(expr.name.lexeme);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        // an operator goes to the outermost loop it's invariant in, anything
+        // invariant in that one is invariant in the ones inside it
+        if (!scanning) {
+            for (int i = 0; i < open.size(); i++) {
+                Loop loop = open.get(i);
+                if (invariant(expr, loop)) {
+                    loop.hoisted.add(expr);
+                    loop.inside.add(new ArrayList<>(open.subList(i + 1, open.size())));
+                    return null;
+                }
+            }
+        }
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (scanning) {
+            for (Loop loop : open) {
+                loop.calls = true;
+            }
+        }
+        walk(expr.callee);
+        for (Expr argument : expr.arguments) {
+            walk(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        walk(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        walk(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        walk(expr.object);
+        walk(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        walk(expr.object);
+        walk(expr.index);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        walk(expr.left);
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        walk(expr.object);
+        walk(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        walk(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+}
@@ -3,67 +3,185 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.NotSerializableException;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 public class Lox {
-
-	private static final Interpreter intepreter = new Interpreter();
-
-	static boolean isPromptMode;
-	static boolean hadError = false;
-	static boolean hadRuntimeError = false;
+	// the run the errors found on a thread are reported to, see switchTo()
+	private static final ThreadLocal<Lox> current = new ThreadLocal<>();
+
+	// where the run's output and errors go, the daemon gives each run its own
+	final PrintStream out;
+	final PrintStream err;
+	// made by the first run that needs one, so a --connect client doesn't build one
+	private Interpreter intepreter = null;
+	private final Budget.Limits limits;
+	// the files the run has open, the ones it drops are left to LoxFile's cleaner
+	private final Set<LoxFile> files = Collections.newSetFromMap(new WeakHashMap<>());
+
+	private boolean isPromptMode = false;
+	// modules are compiled on several threads, all of which can report errors
+	private volatile boolean hadError = false;
+	private volatile boolean hadRuntimeError = false;
+
+	private Lox(PrintStream out, PrintStream err, Budget.Limits limits) {
+		this.out = out;
+		this.err = err;
+		this.limits = limits;
+	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {
-			System.out.println("Usage: jlox [script]");
+		if ((args.length == 2 || args.length == 3) && args[0].equals("--daemon")) {
+			Daemon.serve(Paths.get(args[1]), args.length == 3 ? loadSnapshot(Paths.get(args[2])) : null);
+			return;
+		} else if (args.length == 3 && args[0].equals("--connect")) {
+			System.exit(Daemon.connect(Paths.get(args[1]), args[2]));
+		}
+
+		Lox lox = new Lox(System.out, System.err, Budget.Limits.DEFAULT);
+		switchTo(lox);
+		if (args.length == 3 && args[0].equals("--snapshot")) {
+			lox.snapshot(args[1], Paths.get(args[2]));
+		} else if ((args.length == 2 || args.length == 3) && args[0].equals("--from")) {
+			lox.intepreter = loadSnapshot(Paths.get(args[1]));
+			if (args.length == 3)
+				lox.runFile(args[2]);
+			else
+				lox.runPrompt();
+		} else if (args.length > 1) {
+			System.out.println("Usage: jlox [script] | --snapshot prelude file | --from snapshot [script]"
+					+ " | --daemon socket [snapshot] | --connect socket script");
 			System.exit(64);
 		} else if (args.length == 1) {
-			runFile(args[0]);
+			lox.runFile(args[0]);
 		} else {
-			runPrompt();
+			lox.runPrompt();
 		}
 	}
 
-	private static void runFile(String path) throws IOException {
-		isPromptMode = false;
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()));
+	// makes run the one errors found on this thread are reported to, returns the
+	// one to go back to
+	static Lox switchTo(Lox run) {
+		Lox previous = current.get();
+		current.set(run);
+		return previous;
+	}
+
+	static Lox current() {
+		return current.get();
+	}
+
+	// called by openFile() on the thread of the run it's for
+	static void opened(LoxFile file) {
+		Lox run = current.get();
+		if (run != null)
+			run.files.add(file);
+	}
+
+	private void runFile(String path) throws IOException {
+		Path file = Paths.get(path).toAbsolutePath().normalize();
+		byte[] bytes = Files.readAllBytes(file);
+		run(new String(bytes, Charset.defaultCharset()), file);
 		if (hadError)
 			System.exit(65);
 		if (hadRuntimeError)
 			System.exit(70);
 	}
 
-	private static void runPrompt() throws IOException {
+	// runs a script with a fresh interpreter, or a fork of base if there is one,
+	// within the limits and writing to out and err, and returns the exit code
+	// runFile() would have exited with. runs on different threads don't share
+	// anything but base's globals, which they only read.
+	static int runIsolated(String source, Path file, Interpreter base, Budget.Limits limits,
+			PrintStream out, PrintStream err) {
+		Lox lox = new Lox(out, err, limits);
+		if (base != null)
+			lox.intepreter = base.fork(limits);
+		Lox previous = switchTo(lox);
+		try {
+			lox.run(source, file);
+		} finally {
+			switchTo(previous);
+			// the daemon outlives the run, what it left open is closed now
+			for (LoxFile open : new ArrayList<>(lox.files)) {
+				open.close();
+			}
+		}
+		if (lox.hadError)
+			return 65;
+		if (lox.hadRuntimeError)
+			return 70;
+		return 0;
+	}
+
+	// runs the prelude and, if it ran cleanly, writes a snapshot of what it left
+	private void snapshot(String prelude, Path file) throws IOException {
+		runFile(prelude);
+		try {
+			Snapshot.save(intepreter, file);
+		} catch (NotSerializableException error) {
+			err.println("Can't snapshot a value of " + error.getMessage() + ".");
+			Files.deleteIfExists(file);
+			System.exit(70);
+		}
+	}
+
+	private static Interpreter loadSnapshot(Path file) {
+		try {
+			return Snapshot.load(file);
+		} catch (IOException error) {
+			System.err.println("Can't load snapshot '" + file + "': " + error.getMessage());
+			System.exit(66);
+			return null;
+		}
+	}
+
+	private void runPrompt() throws IOException {
 		isPromptMode = true;
 		InputStreamReader input = new InputStreamReader(System.in);
 		BufferedReader reader = new BufferedReader(input);
 
 		for (;;) {
-			System.out.print("> ");
+			out.print("> ");
 			String line = reader.readLine();
 			if (line == null)
 				break;
-			run(line);
+			run(line, null);
 			hadError = false;
 		}
 	}
 
-	private static void run(String source) {
+	private void run(String source, Path file) {
 		Scanner scanner = new Scanner(source);
-		List<Token> tokens = scanner.scanTokens();
+		Tokens tokens = scanner.scanTokens();
 		Parser parser = new Parser(tokens);
 		List<Stmt> statements = parser.parse();
 
 		if (hadError)
 			return;
 		// run the resolver after the parser completes and theres no error
-		Resolver resolver = new Resolver(intepreter);
+		Resolver resolver = new Resolver();
 		resolver.resolve(statements);
+		new TypeInference().infer(statements);
+		new LoopInvariants().hoist(statements);
+		new Inliner().inline(statements);
+
+		if (intepreter == null)
+			intepreter = new Interpreter(limits);
+		intepreter.out = out;
+		intepreter.isPromptMode = isPromptMode;
+		// compile everything the program imports before running any of it
+		intepreter.modules.load(statements, file);
 
 		if (hadError)
 			return;
@@ -72,24 +190,25 @@ public class Lox {
 	}
 
 	public static void error(int line, String message) {
-		report(line, "", message);
+		current().report(line, "", message);
 	}
 
-	private static void report(int line, String where, String message) {
-		System.err.println("[line" + line + "] Error" + where + ": " + message);
+	private void report(int line, String where, String message) {
+		err.println("[line" + line + "] Error" + where + ": " + message);
 		hadError = true;
 	}
 
 	public static void error(Token token, String message) {
 		if (token.type == TokenType.EOF) {
-			report(token.line, " at end", message);
+			current().report(token.line, " at end", message);
 		} else {
-			report(token.line, " at '" + token.lexeme + "'", message);
+			current().report(token.line, " at '" + token.lexeme + "'", message);
 		}
 	}
 
 	public static void runtimeError(RuntimeError error) {
-		System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-		hadRuntimeError = true;
+		Lox run = current();
+		run.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+		run.hadRuntimeError = true;
 	}
 }
@@ -0,0 +1,189 @@
+package lox;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+// runtime representation of the native Array type.
+// numbers are stored unboxed in a double[] until something that isn't a number
+// is put in the array, from then on it keeps an Object[].
+
+public class LoxArray implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private double[] numbers = new double[8];
+    private Object[] values = null;
+    private int size = 0;
+    // shared with forks, see Fork
+    private transient boolean frozen = false;
+
+    int size() {
+        LoxArray own = readable();
+        if (own != this)
+            return own.size();
+        return size;
+    }
+
+    Object get(Token bracket, Object index) {
+        LoxArray own = readable();
+        if (own != this)
+            return own.get(bracket, index);
+        int i = index(bracket, index);
+        if (values == null)
+            return numbers[i];
+        return values[i];
+    }
+
+    void set(Token bracket, Object index, Object value) {
+        if (frozen) {
+            Fork.write(this, LoxArray::copy).set(bracket, index, value);
+            return;
+        }
+        int i = index(bracket, index);
+        if (values == null) {
+            if (value instanceof Double) {
+                numbers[i] = (double) value;
+                return;
+            }
+            box();
+        }
+        values[i] = value;
+    }
+
+    void push(Object value) {
+        if (frozen) {
+            Fork.write(this, LoxArray::copy).push(value);
+            return;
+        }
+        if (values == null) {
+            if (value instanceof Double) {
+                if (size == numbers.length)
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                numbers[size++] = (double) value;
+                return;
+            }
+            box();
+        }
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    // the elements as they are now, boxed
+    Object[] elements() {
+        LoxArray own = readable();
+        if (own != this)
+            return own.elements();
+        Object[] elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            elements[i] = values == null ? numbers[i] : values[i];
+        }
+        return elements;
+    }
+
+    Object pop() {
+        if (frozen)
+            return Fork.write(this, LoxArray::copy).pop();
+        if (size == 0)
+            return null;
+        size--;
+        if (values == null)
+            return numbers[size];
+        Object value = values[size];
+        // don't keep the popped value alive
+        values[size] = null;
+        return value;
+    }
+
+    // the methods arrays answer to
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "push":
+                return new NativeMethod(1) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        push(arguments.get(0));
+                        return null;
+                    }
+                };
+            case "pop":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return pop();
+                    }
+                };
+            case "length":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return (double) size();
+                    }
+                };
+        }
+
+        throw new RuntimeError(name, "Undefine property '" + name.lexeme + "'.");
+    }
+
+    private int index(Token bracket, Object index) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError(bracket, "Array index must be a number.");
+        }
+        double value = (double) index;
+        int i = (int) value;
+        if (i != value) {
+            throw new RuntimeError(bracket, "Array index must be an integer.");
+        }
+        if (i < 0 || i >= size) {
+            throw new RuntimeError(bracket, "Array index out of bounds.");
+        }
+        return i;
+    }
+
+    // switch to the boxed storage, once an array holds a non-number it stays boxed
+    private void box() {
+        values = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    // inside a fork that has written to this array, the fork's copy of it
+    private LoxArray readable() {
+        if (frozen) {
+            LoxArray copy = Fork.read(this);
+            if (copy != null)
+                return copy;
+        }
+        return this;
+    }
+
+    private LoxArray copy() {
+        LoxArray copy = new LoxArray();
+        copy.numbers = numbers == null ? null : numbers.clone();
+        copy.values = values == null ? null : values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    void freeze(List<Object> reachable) {
+        frozen = true;
+        if (values != null)
+            reachable.addAll(Arrays.asList(values).subList(0, size));
+    }
+
+    @Override
+    public String toString() {
+        LoxArray own = readable();
+        if (own != this)
+            return own.toString();
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                text.append(", ");
+            text.append(Interpreter.stringify(values == null ? numbers[i] : values[i]));
+        }
+        return text.append("]").toString();
+    }
+}
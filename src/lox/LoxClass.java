@@ -6,6 +6,8 @@ import java.util.Map;
 //runtime representation of a class;
 
 public class LoxClass extends LoxInstance implements LoxCallable {
+    private static final long serialVersionUID = 1L;
+
     final String name;
     private final Map<String, LoxFunction> methods;
     final LoxClass superClass;
@@ -54,6 +56,62 @@ public class LoxClass extends LoxInstance implements LoxCallable {
         return instance;
     }
 
+    // the fixed-arity calls hand their arguments straight on to init
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        LoxFunction initializer = findMethod("init");
+        if (initializer != null)
+            initializer.bind(instance).call0(interpreter);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        LoxFunction initializer = findMethod("init");
+        if (initializer != null)
+            initializer.bind(instance).call1(interpreter, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        LoxFunction initializer = findMethod("init");
+        if (initializer != null)
+            initializer.bind(instance).call2(interpreter, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        LoxFunction initializer = findMethod("init");
+        if (initializer != null)
+            initializer.bind(instance).call3(interpreter, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        LoxInstance instance = new LoxInstance(this);
+        LoxFunction initializer = findMethod("init");
+        if (initializer != null)
+            initializer.bind(instance).call4(interpreter, a, b, c, d);
+        return instance;
+    }
+
+    @Override
+    void freeze(List<Object> reachable) {
+        super.freeze(reachable);
+        if (methods != null)
+            reachable.addAll(methods.values());
+        if (superClass != null)
+            reachable.add(superClass);
+    }
+
     @Override
     public int arity() {
         LoxFunction initializer = findMethod("init");
@@ -0,0 +1,276 @@
+package lox;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file opened for reading by openFile(path, charset), charset is a name like
+ * "utf-8" or nil for UTF-8. readLine() returns the next line without its line
+ * break, readChunk(size) the next size characters or fewer, and both return nil
+ * at the end of the file. close() closes it.
+ *
+ * Small files are read through a buffer with FileChannel.read(), files of
+ * MAP_THRESHOLD bytes or more are memory mapped a WINDOW at a time. Either way
+ * the bytes aren't copied before they're decoded: a line is found by looking
+ * for the '\n' byte and decoded from where it is, straight into the string
+ * that's returned from a buffer, or into a char buffer that's kept for the next
+ * line from a mapping, so lines can only be read in charsets that write '\n' as
+ * that byte. Bytes that aren't valid in the charset decode as the replacement
+ * character.
+ *
+ * A file that's dropped without being closed has its channel closed by a
+ * Cleaner, and its mapping goes with the buffer. The daemon also closes the
+ * files a run left open when it ends, see Lox.runIsolated().
+ */
+public class LoxFile {
+    private static final int BUFFER = 64 * 1024;
+    private static final long MAP_THRESHOLD = Long.getLong("lox.file.map", 16L << 20);
+    private static final int WINDOW = 64 << 20;
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final String path;
+    private final FileChannel channel;
+    // closes the channel, once, when close() is called or the file is dropped
+    private final Cleaner.Cleanable closer;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    // whether the charset writes '\n' as that byte, so lines can be found
+    private final boolean lines;
+    // the size when it was opened, only used when mapping
+    private final long size;
+    private final boolean mapped;
+    // what's been read of the file or the mapped window, from the next byte to
+    // return on. when mapping, windowStart is where the window is in the file.
+    private ByteBuffer buffer;
+    private long windowStart = 0;
+    // where readChunk() and mapped lines decode to, kept for the next call
+    private CharBuffer chars = CharBuffer.allocate(0);
+
+    private LoxFile(String path, FileChannel channel, Charset charset) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.charset = charset;
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        lines = Arrays.equals("\n".getBytes(charset), new byte[] { '\n' });
+        size = channel.size();
+        mapped = size >= MAP_THRESHOLD;
+        if (mapped) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, size));
+        } else {
+            buffer = ByteBuffer.allocate(BUFFER);
+            buffer.flip();
+        }
+        // the action can't hold on to the file, or it would never be dropped
+        closer = cleaner.register(this, () -> close(channel));
+    }
+
+    @Native
+    static LoxFile openFile(String path, Object charsetName) {
+        if (charsetName != null && !(charsetName instanceof String))
+            throw new NativeError("Argument 2 to 'openFile' must be a charset name or nil.");
+        Charset charset;
+        try {
+            charset = charsetName == null ? StandardCharsets.UTF_8 : Charset.forName((String) charsetName);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException error) {
+            throw new NativeError("Unknown charset '" + charsetName + "'.");
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (NoSuchFileException error) {
+            throw new NativeError("Can't open '" + path + "', there's no such file.");
+        } catch (IOException | RuntimeException error) {
+            throw new NativeError("Can't open '" + path + "': " + error.getMessage());
+        }
+        try {
+            LoxFile file = new LoxFile(path, channel, charset);
+            Lox.opened(file);
+            return file;
+        } catch (IOException error) {
+            close(channel);
+            throw new NativeError("Can't read '" + path + "': " + error.getMessage());
+        }
+    }
+
+    synchronized String readLine() {
+        open();
+        if (!lines)
+            throw new NativeError("Can't read lines in " + charset.name() + ".");
+
+        int scanned = 0;
+        try {
+            for (;;) {
+                int start = buffer.position();
+                for (int i = start + scanned; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                        String line = decode(start, end - start);
+                        buffer.position(i + 1);
+                        return line;
+                    }
+                }
+                scanned = buffer.limit() - start;
+                if (!fill())
+                    break;
+            }
+        } catch (IOException error) {
+            throw failed(error);
+        }
+
+        // the last line may not end with a line break
+        if (!buffer.hasRemaining())
+            return null;
+        String line = decode(buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+        return line;
+    }
+
+    synchronized String readChunk(int size) {
+        open();
+        if (size <= 0)
+            throw new NativeError("Chunk size must be positive.");
+        if (chars.capacity() < size)
+            chars = CharBuffer.allocate(size);
+        chars.clear().limit(size);
+
+        try {
+            // the decoder stops before a character that's cut off at the end of the
+            // buffer, and takes it up again after the next fill
+            while (chars.hasRemaining() && decoder.decode(buffer, chars, false).isUnderflow()) {
+                if (!fill()) {
+                    decoder.decode(buffer, chars, true);
+                    decoder.flush(chars);
+                    decoder.reset();
+                    break;
+                }
+            }
+        } catch (IOException error) {
+            throw failed(error);
+        }
+
+        if (chars.position() == 0)
+            return null;
+        return chars.flip().toString();
+    }
+
+    synchronized void close() {
+        closer.clean();
+        // lets the mapping go before the file does
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    // makes more of the file readable after what's left in the buffer, false at
+    // the end of the file
+    private boolean fill() throws IOException {
+        if (mapped) {
+            long position = windowStart + buffer.position();
+            int left = buffer.remaining();
+            if (position + left >= size)
+                return false;
+            // what's left is kept, a window too small for it grows
+            long length = Math.min(Math.max(WINDOW, left * 2L), Math.min(Integer.MAX_VALUE, size - position));
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+            return true;
+        }
+
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read > 0;
+    }
+
+    private String decode(int from, int length) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, charset);
+
+        int most = (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(length * (double) decoder.maxCharsPerByte()));
+        if (chars.capacity() < most)
+            chars = CharBuffer.allocate(Math.max(most, chars.capacity() * 2));
+        chars.clear();
+        // a line is whole, so this is the decoder's end of input
+        decoder.reset();
+        decoder.decode(buffer.slice(from, length), chars, true);
+        decoder.flush(chars);
+        decoder.reset();
+        return chars.flip().toString();
+    }
+
+    private void open() {
+        if (!channel.isOpen())
+            throw new NativeError("File '" + path + "' is closed.");
+    }
+
+    private NativeError failed(IOException error) {
+        return new NativeError("Can't read '" + path + "': " + error.getMessage());
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException error) {
+            // there's nothing left to read from it either way
+        }
+    }
+
+    // the methods files answer to
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "readLine":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return readLine();
+                    }
+                };
+            case "readChunk":
+                return new NativeMethod(1) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        Object size = arguments.get(0);
+                        if (!(size instanceof Double) || (double) size != Math.floor((double) size))
+                            throw new NativeError("Chunk size must be an integer.");
+                        return readChunk((int) Math.min((double) size, Integer.MAX_VALUE));
+                    }
+                };
+            case "close":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        close();
+                        return null;
+                    }
+                };
+        }
+
+        throw new RuntimeError(name, "Undefine property '" + name.lexeme + "'.");
+    }
+
+    @Override
+    public String toString() {
+        return "<file " + path + ">";
+    }
+}
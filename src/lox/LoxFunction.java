@@ -1,12 +1,21 @@
 package lox;
 
-import java.sql.ClientInfoStatus;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
+public class LoxFunction implements LoxCallable, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final Stmt.Function declaration;
     private final Enviroment closure;
-    private final boolean isInitializer;
+    final boolean isInitializer;
+    // calls and loop iterations run so far, the jit takes over past Jit.THRESHOLD
+    int hotness = 0;
+    private transient JitCode compiled = null;
+    // the results it remembers once it's memoized, see Memo
+    Memo memo = null;
 
     LoxFunction(Stmt.Function declaration, Enviroment closure, boolean isInitializer) {
         this.closure = closure;
@@ -22,6 +31,18 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (memo != null)
+            return memoized(interpreter, arguments);
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call(arguments);
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        return run(interpreter, parameters(arguments));
+    }
+
+    private Enviroment parameters(List<Object> arguments) {
         // each function gets their ownd enviroment
         // enviroments are created dynamically, each function call gets its own
         Enviroment enviroment = new Enviroment(closure);
@@ -32,15 +53,133 @@ public class LoxFunction implements LoxCallable {
             // define takes a String name and a Object value
             enviroment.define(declaration.params.get(i).lexeme, arguments.get(i));
         }
-        // then it tells the interpreter to execute the body of the function in this new
-        // function-local enviroment
+        return enviroment;
+    }
+
+    // a memoized function never runs compiled, its compiled calls to itself
+    // wouldn't look at the results
+    private Object memoized(Interpreter interpreter, List<Object> arguments) {
+        Object result = memo.get(this, interpreter.globals, arguments);
+        if (result != Memo.MISSING)
+            return result;
+        result = run(interpreter, parameters(arguments));
+        memo.put(interpreter.globals, arguments, result);
+        return result;
+    }
+
+    // the fixed-arity entry points bind the parameters straight from their own
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if (memo != null)
+            return memoized(interpreter, Collections.emptyList());
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call0();
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        return run(interpreter, new Enviroment(closure));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        if (memo != null)
+            return memoized(interpreter, Arrays.asList(a));
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call1(a);
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        Enviroment enviroment = new Enviroment(closure);
+        enviroment.define(declaration.params.get(0).lexeme, a);
+        return run(interpreter, enviroment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        if (memo != null)
+            return memoized(interpreter, Arrays.asList(a, b));
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call2(a, b);
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        Enviroment enviroment = new Enviroment(closure);
+        enviroment.define(declaration.params.get(0).lexeme, a);
+        enviroment.define(declaration.params.get(1).lexeme, b);
+        return run(interpreter, enviroment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        if (memo != null)
+            return memoized(interpreter, Arrays.asList(a, b, c));
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call3(a, b, c);
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        Enviroment enviroment = new Enviroment(closure);
+        enviroment.define(declaration.params.get(0).lexeme, a);
+        enviroment.define(declaration.params.get(1).lexeme, b);
+        enviroment.define(declaration.params.get(2).lexeme, c);
+        return run(interpreter, enviroment);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        if (memo != null)
+            return memoized(interpreter, Arrays.asList(a, b, c, d));
+        if (useCompiled(interpreter)) {
+            Object result = compiled.call4(a, b, c, d);
+            if (result != JitCode.DEOPT)
+                return result;
+        }
+
+        Enviroment enviroment = new Enviroment(closure);
+        enviroment.define(declaration.params.get(0).lexeme, a);
+        enviroment.define(declaration.params.get(1).lexeme, b);
+        enviroment.define(declaration.params.get(2).lexeme, c);
+        enviroment.define(declaration.params.get(3).lexeme, d);
+        return run(interpreter, enviroment);
+    }
+
+    // a function that yields doesn't run yet, the call makes a generator that runs
+    // it when it's asked for values
+    private Object run(Interpreter interpreter, Enviroment enviroment) {
+        if (declaration.generator)
+            return new LoxGenerator(this, interpreter, enviroment);
+        return execute(interpreter, enviroment);
+    }
+
+    // then it tells the interpreter to execute the body of the function in this new
+    // function-local enviroment
+    Object execute(Interpreter interpreter, Enviroment enviroment) {
+        Budget budget = interpreter.budget;
+        if (budget != null)
+            budget.enter();
+        LoxFunction caller = interpreter.running;
+        interpreter.running = this;
         try {
-            interpreter.executeBlock(declaration.body, enviroment);
+            // the closure-compiling engine left the compiled body on the declaration
+            if (declaration.compiled != null && interpreter.compiler != null) {
+                declaration.compiled.exec(enviroment);
+            } else {
+                interpreter.executeBlock(declaration.body, enviroment);
+            }
 
         } catch (Return returnValue) {
             if (isInitializer)
                 return closure.getAt(0, "this");
             return returnValue.value;
+        } finally {
+            interpreter.running = caller;
+            if (budget != null)
+                budget.exit();
         }
 
         if (isInitializer)
@@ -48,6 +187,41 @@ public class LoxFunction implements LoxCallable {
         return null;
     }
 
+    // counts the call, and says whether the compiled code can run it. compiled
+    // calls to itself go straight to the compiled code, so it's only valid while
+    // the function's name still refers to the function.
+    private boolean useCompiled(Interpreter interpreter) {
+        // compiled code doesn't check budgets
+        if (interpreter.budget != null)
+            return false;
+        if (compiled == null) {
+            if (++hotness <= Jit.THRESHOLD)
+                return false;
+            tierUp(interpreter);
+            if (compiled == null)
+                return false;
+        }
+        return interpreter.globals.getAt(0, declaration.name.lexeme) == this;
+    }
+
+    // only functions declared at the top level are compiled, anything else may
+    // close over variables the compiled code couldn't see
+    private void tierUp(Interpreter interpreter) {
+        if (Jit.ENABLED && closure == interpreter.globals && !isInitializer)
+            compiled = Jit.compile(declaration);
+        // compiled or not, it's not looked at again
+        hotness = Integer.MIN_VALUE;
+    }
+
+    boolean isDeclaredBy(Stmt.Function declaration) {
+        return this.declaration == declaration;
+    }
+
+    // a function is never written to, but what it closes over is shared too
+    void freeze(List<Object> reachable) {
+        reachable.add(closure);
+    }
+
     @Override
     public int arity() {
         return declaration.params.size();
@@ -0,0 +1,270 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What calling a function that yields returns. hasNext() runs the body up to
+ * its next yield, or its end, and next() returns the value yielded, so values
+ * are made one at a time as they're asked for.
+ *
+ * The body runs on the thread that asks for a value, as a stack of frames for
+ * the blocks, ifs and loops it's in the middle of (the resolver marks the ones
+ * with a yield in them). Statements without a yield run on the worker
+ * interpreter in one go, so a suspended generator only holds its frames and
+ * enviroments, and one that's dropped is collected like any other object. The
+ * worker (see Interpreter.worker()) keeps the body's call state, its loop
+ * frames among it, apart from the caller's.
+ *
+ * Errors in the body are thrown by the call that asked for the value and end
+ * the generator, and a body can't ask its own generator for one.
+ */
+public class LoxGenerator {
+    // what pending and steps return when there's no value
+    private static final Object NONE = new Object();
+
+    private final LoxFunction function;
+    private final Interpreter worker;
+    // the statements the body is in the middle of, the innermost last
+    private final List<Frame> frames = new ArrayList<>();
+    // the value the body yielded that next() hasn't returned yet
+    private Object pending = NONE;
+    private boolean running = false;
+
+    LoxGenerator(LoxFunction function, Interpreter interpreter, Enviroment enviroment) {
+        this.function = function;
+        worker = interpreter.worker();
+        worker.budget = interpreter.budget;
+        worker.running = function;
+        frames.add(new Block(function.declaration.body, enviroment));
+    }
+
+    // forks can share a generator, the lock makes one wait for the other. the
+    // thread running the body holds it too, so it has to be told apart.
+    synchronized boolean hasNext() {
+        if (running)
+            throw new NativeError("Generator is already running.");
+        if (pending == NONE && !frames.isEmpty())
+            pending = resume();
+        return pending != NONE;
+    }
+
+    synchronized Object next() {
+        if (!hasNext())
+            throw new NativeError("Generator '" + function.declaration.name.lexeme + "' has no more values.");
+        Object value = pending;
+        pending = NONE;
+        return value;
+    }
+
+    // runs the body up to its next yield and returns the value, or NONE at its end
+    private Object resume() {
+        Budget budget = worker.budget;
+        if (budget != null)
+            budget.enter();
+        running = true;
+        try {
+            while (!frames.isEmpty()) {
+                Object value = frames.get(frames.size() - 1).step();
+                if (value != NONE)
+                    return value;
+            }
+            return NONE;
+        } catch (Return end) {
+            frames.clear();
+            return NONE;
+        } catch (RuntimeException | Error error) {
+            frames.clear();
+            throw error;
+        } finally {
+            running = false;
+            if (budget != null)
+                budget.exit();
+        }
+    }
+
+    // runs a statement of the body in the enviroment, returns what it yielded or
+    // NONE. one with a yield in it becomes a frame, unless it's the yield.
+    private Object run(Stmt stmt, Enviroment enviroment) {
+        if (stmt instanceof Stmt.Yield) {
+            count();
+            return worker.evaluate(((Stmt.Yield) stmt).value, enviroment);
+        }
+        if (stmt instanceof Stmt.Block && ((Stmt.Block) stmt).yields) {
+            count();
+            Stmt.Block block = (Stmt.Block) stmt;
+            frames.add(new Block(block.statements,
+                    block.declaresNothing ? enviroment : new Enviroment(enviroment)));
+            return NONE;
+        }
+        if (stmt instanceof Stmt.If && ((Stmt.If) stmt).yields) {
+            count();
+            Stmt.If branch = (Stmt.If) stmt;
+            if (Interpreter.isTruthy(worker.evaluate(branch.condition, enviroment)))
+                return run(branch.thenBranch, enviroment);
+            if (branch.elseBranch != null)
+                return run(branch.elseBranch, enviroment);
+            return NONE;
+        }
+        if (stmt instanceof Stmt.While && ((Stmt.While) stmt).yields) {
+            count();
+            frames.add(new While((Stmt.While) stmt, enviroment));
+            return NONE;
+        }
+        if (stmt instanceof Stmt.For && ((Stmt.For) stmt).yields) {
+            count();
+            frames.add(new For((Stmt.For) stmt, enviroment));
+            return NONE;
+        }
+
+        worker.execute(stmt, enviroment);
+        return NONE;
+    }
+
+    private void count() {
+        if (worker.budget != null)
+            worker.budget.statements++;
+    }
+
+    // after a loop's body, what the interpreter does at its back-edge
+    private void backEdge(Token keyword) {
+        function.hotness++;
+        if (worker.budget != null)
+            worker.budget.check(keyword);
+    }
+
+    private void pop() {
+        frames.remove(frames.size() - 1);
+    }
+
+    // the methods generators answer to
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "hasNext":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return hasNext();
+                    }
+                };
+            case "next":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return next();
+                    }
+                };
+        }
+
+        throw new RuntimeError(name, "Undefine property '" + name.lexeme + "'.");
+    }
+
+    @Override
+    public String toString() {
+        return "<generator " + function.declaration.name.lexeme + ">";
+    }
+
+    // a statement the body is in the middle of. step() runs the next part of it,
+    // and returns what that yielded or NONE
+    private abstract class Frame {
+        abstract Object step();
+    }
+
+    private class Block extends Frame {
+        private final List<Stmt> statements;
+        private final Enviroment enviroment;
+        private int next = 0;
+
+        Block(List<Stmt> statements, Enviroment enviroment) {
+            this.statements = statements;
+            this.enviroment = enviroment;
+        }
+
+        @Override
+        Object step() {
+            if (next == statements.size()) {
+                pop();
+                return NONE;
+            }
+            return run(statements.get(next++), enviroment);
+        }
+    }
+
+    // loops keep invariants in the worker's frames like Interpreter's do, what's
+    // hoisted stays there while the generator is suspended
+    private class While extends Frame {
+        private final Stmt.While loop;
+        private final Enviroment enviroment;
+        private Object[] enclosing;
+        private boolean started = false;
+
+        While(Stmt.While loop, Enviroment enviroment) {
+            this.loop = loop;
+            this.enviroment = enviroment;
+        }
+
+        @Override
+        Object step() {
+            if (!started) {
+                enclosing = worker.invariants;
+                if (loop.invariants > 0)
+                    worker.invariants = LoopInvariants.frame(enclosing, loop.invariants);
+                started = true;
+            } else {
+                backEdge(loop.keyword);
+            }
+
+            if (!Interpreter.isTruthy(worker.evaluate(loop.condition, enviroment))) {
+                worker.invariants = enclosing;
+                pop();
+                return NONE;
+            }
+            return run(loop.body, enviroment);
+        }
+    }
+
+    private class For extends Frame {
+        private final Stmt.For loop;
+        private final Enviroment previous;
+        private Enviroment enviroment;
+        private Object[] enclosing;
+        private boolean started = false;
+
+        For(Stmt.For loop, Enviroment previous) {
+            this.loop = loop;
+            this.previous = previous;
+        }
+
+        @Override
+        Object step() {
+            if (!started) {
+                enclosing = worker.invariants;
+                if (loop.invariants > 0)
+                    worker.invariants = LoopInvariants.frame(enclosing, loop.invariants);
+                // the loop variable lives in one enviroment for the whole loop
+                enviroment = loop.initializer instanceof Stmt.Var ? new Enviroment(previous) : previous;
+                if (loop.initializer != null)
+                    worker.execute(loop.initializer, enviroment);
+                started = true;
+            } else {
+                backEdge(loop.keyword);
+                if (loop.captured) {
+                    // closures made by this iteration keep their own copy of the variable
+                    String name = ((Stmt.Var) loop.initializer).name.lexeme;
+                    Enviroment next = new Enviroment(previous);
+                    next.define(name, enviroment.getAt(0, name));
+                    enviroment = next;
+                }
+                if (loop.increment != null)
+                    worker.evaluate(loop.increment, enviroment);
+            }
+
+            if (loop.condition != null && !Interpreter.isTruthy(worker.evaluate(loop.condition, enviroment))) {
+                worker.invariants = enclosing;
+                pop();
+                return NONE;
+            }
+            return run(loop.body, enviroment);
+        }
+    }
+}
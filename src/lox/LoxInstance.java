@@ -1,13 +1,19 @@
 package lox;
 
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 //the runtime representation of an instance of a lox class
 
-public class LoxInstance {
+public class LoxInstance implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private LoxClass klass;
     private final Map<String, Object> fields = new HashMap<>();
+    // shared with forks, see Fork
+    private transient boolean frozen = false;
 
     LoxInstance() {
     }
@@ -27,6 +33,12 @@ public class LoxInstance {
     }
 
     Object get(Token name) {
+        Map<String, Object> fields = this.fields;
+        if (frozen) {
+            LoxInstance copy = Fork.read(this);
+            if (copy != null)
+                fields = copy.fields;
+        }
         // check if the instance has a field with that name
         if (fields.containsKey(name.lexeme)) {
             // returns it
@@ -41,6 +53,20 @@ public class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        // a fork writes to its own copy of the fields, the copy is only storage so
+        // this stays the instance methods are bound to
+        LoxInstance instance = frozen ? Fork.write(this, LoxInstance::copy) : this;
+        instance.fields.put(name.lexeme, value);
+    }
+
+    private LoxInstance copy() {
+        LoxInstance copy = new LoxInstance();
+        copy.fields.putAll(fields);
+        return copy;
+    }
+
+    void freeze(List<Object> reachable) {
+        frozen = true;
+        reachable.addAll(fields.values());
     }
 }
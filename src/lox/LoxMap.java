@@ -0,0 +1,287 @@
+package lox;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+// runtime representation of the native Map type.
+// entries are appended to parallel arrays in insertion order, and an open-addressed
+// table of entry numbers (linear probing) finds them by key. removing an entry
+// leaves a hole in the arrays until the next resize packs them again.
+
+public class LoxMap implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // marks a removed entry, its slot in the table still makes probes go on
+    private static final Object REMOVED = new Object();
+
+    private Object[] keys = new Object[8];
+    private Object[] values = new Object[8];
+    private int[] hashes = new int[8];
+    // entries used so far, removed ones included
+    private int count = 0;
+    private int size = 0;
+    // 0 for an empty slot, otherwise the entry's position plus one.
+    // it is kept twice as big as the entry arrays so probes stay short.
+    private transient int[] table = new int[16];
+    // shared with forks, see Fork
+    private transient boolean frozen = false;
+
+    int size() {
+        LoxMap own = readable();
+        if (own != this)
+            return own.size();
+        return size;
+    }
+
+    Object get(Object key) {
+        LoxMap own = readable();
+        if (own != this)
+            return own.get(key);
+        if (key == null)
+            return null;
+        int entry = find(key, hash(key));
+        return entry < 0 ? null : values[entry];
+    }
+
+    void put(Token bracket, Object key, Object value) {
+        if (frozen) {
+            Fork.write(this, LoxMap::copy).put(bracket, key, value);
+            return;
+        }
+        if (key == null) {
+            throw new RuntimeError(bracket, "Map key can't be nil.");
+        }
+
+        int hash = hash(key);
+        int entry = find(key, hash);
+        if (entry >= 0) {
+            values[entry] = value;
+            return;
+        }
+
+        if (count == keys.length)
+            resize();
+
+        keys[count] = key;
+        values[count] = value;
+        hashes[count] = hash;
+        insert(hash, count);
+        count++;
+        size++;
+    }
+
+    Object remove(Object key) {
+        if (frozen)
+            return Fork.write(this, LoxMap::copy).remove(key);
+        if (key == null)
+            return null;
+        int entry = find(key, hash(key));
+        if (entry < 0)
+            return null;
+
+        Object value = values[entry];
+        keys[entry] = REMOVED;
+        values[entry] = null;
+        size--;
+        return value;
+    }
+
+    // the methods maps answer to
+    Object get(Token name) {
+        switch (name.lexeme) {
+            case "has":
+                return new NativeMethod(1) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return has(arguments.get(0));
+                    }
+                };
+            case "remove":
+                return new NativeMethod(1) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return remove(arguments.get(0));
+                    }
+                };
+            case "size":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return (double) size();
+                    }
+                };
+            case "keys":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return readable().entries(true);
+                    }
+                };
+            case "values":
+                return new NativeMethod(0) {
+                    @Override
+                    public Object call(Interpreter interpreter, List<Object> arguments) {
+                        return readable().entries(false);
+                    }
+                };
+        }
+
+        throw new RuntimeError(name, "Undefine property '" + name.lexeme + "'.");
+    }
+
+    private boolean has(Object key) {
+        LoxMap own = readable();
+        if (own != this)
+            return own.has(key);
+        return key != null && find(key, hash(key)) >= 0;
+    }
+
+    private int find(Object key, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (hashes[entry] == hash && equal(keys[entry], key))
+                return entry;
+        }
+    }
+
+    private void insert(int hash, int entry) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry + 1;
+    }
+
+    // packs the live entries to the front, growing the arrays if they're more than
+    // half full, and rebuilds the table
+    private void resize() {
+        int capacity = size * 2 >= keys.length ? keys.length * 2 : keys.length;
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        table = new int[capacity * 2];
+
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            if (oldKeys[i] == REMOVED)
+                continue;
+            keys[live] = oldKeys[i];
+            values[live] = oldValues[i];
+            hashes[live] = oldHashes[i];
+            insert(hashes[live], live);
+            live++;
+        }
+        count = live;
+    }
+
+    // REMOVED can't be written to a snapshot, so the holes are packed first
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (count != size)
+            resize();
+        out.defaultWriteObject();
+    }
+
+    // instances hash by identity, which a snapshot doesn't keep, so every key is
+    // hashed again
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        table = new int[keys.length * 2];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(keys[i]);
+            insert(hashes[i], i);
+        }
+    }
+
+    private LoxArray entries(boolean ofKeys) {
+        Object[] column = ofKeys ? keys : values;
+        LoxArray array = new LoxArray();
+        for (int i = 0; i < count; i++) {
+            if (keys[i] != REMOVED)
+                array.push(column[i]);
+        }
+        return array;
+    }
+
+    // inside a fork that has written to this map, the fork's copy of it
+    private LoxMap readable() {
+        if (frozen) {
+            LoxMap copy = Fork.read(this);
+            if (copy != null)
+                return copy;
+        }
+        return this;
+    }
+
+    private LoxMap copy() {
+        LoxMap copy = new LoxMap();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.hashes = hashes.clone();
+        copy.table = table.clone();
+        copy.count = count;
+        copy.size = size;
+        return copy;
+    }
+
+    void freeze(List<Object> reachable) {
+        frozen = true;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] != REMOVED) {
+                reachable.add(keys[i]);
+                reachable.add(values[i]);
+            }
+        }
+    }
+
+    /*
+     * numbers hash their raw bits instead of going through Double.hashCode(), and
+     * every hash is mixed (murmur3's finalizer) because small integral doubles and
+     * short strings differ mostly in bits that a power-of-two table would drop.
+     * keys compare the way == does in Lox, numbers by Double.equals().
+     */
+    private static int hash(Object key) {
+        long bits;
+        if (key instanceof Double) {
+            bits = Double.doubleToLongBits((double) key);
+        } else {
+            bits = key.hashCode();
+        }
+        bits ^= bits >>> 33;
+        bits *= 0xff51afd7ed558ccdL;
+        bits ^= bits >>> 33;
+        bits *= 0xc4ceb9fe1a85ec53L;
+        bits ^= bits >>> 33;
+        return (int) bits;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != REMOVED && a.equals(b));
+    }
+
+    @Override
+    public String toString() {
+        LoxMap own = readable();
+        if (own != this)
+            return own.toString();
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == REMOVED)
+                continue;
+            if (text.length() > 1)
+                text.append(", ");
+            text.append(Interpreter.stringify(keys[i])).append(": ").append(Interpreter.stringify(values[i]));
+        }
+        return text.append("}").toString();
+    }
+}
@@ -0,0 +1,122 @@
+package lox;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * memoize(fn) makes a function remember what it returned for the arguments it
+ * was called with, and answer the same arguments again without running. Only
+ * pure functions can be memoized, see Purity. It marks the function itself, so
+ * the recursive calls it makes by name are remembered too, and returns it.
+ *
+ * It's proven pure with the global functions it calls as they are then. When
+ * one of those names has been given another value, the results are dropped and
+ * it's proven again, and if it isn't pure any more its calls run without being
+ * remembered until it is.
+ *
+ * A function keeps the results of at most CAPACITY different calls, the least
+ * recently used one goes first. Arguments are the same when == says so, and a
+ * call that fails isn't remembered. memoStats(fn) returns a map of the hits,
+ * misses and size of a memoized function's results.
+ */
+final class Memo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int CAPACITY = Integer.getInteger("lox.memo.capacity", 10_000);
+
+    // what get() returns for arguments without a result, nil is one
+    static final Object MISSING = new Object();
+
+    // a LinkedHashMap in access order, that drops its eldest entry when it's full
+    private static class Results extends LinkedHashMap<List<Object>, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Results(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Results results = new Results(CAPACITY);
+    private long hits = 0;
+    private long misses = 0;
+    // the globals Purity looked up as callees, by name, and what it decided
+    private Map<String, Object> callees;
+    private boolean pure = true;
+
+    private Memo(Map<String, Object> callees) {
+        this.callees = callees;
+    }
+
+    // forks share functions, so calls can come from several threads at once. the
+    // lock isn't held while the function runs, recursive calls need it.
+
+    synchronized Object get(LoxFunction function, Enviroment globals, List<Object> arguments) {
+        if (!current(globals)) {
+            results.clear();
+            Map<String, Object> found = new HashMap<>();
+            pure = Purity.isPure(function, globals, found);
+            callees = found;
+        }
+        Object result = pure ? results.getOrDefault(arguments, MISSING) : MISSING;
+        if (result == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    // a fork that sees other callees may have changed them while it ran
+    synchronized void put(Enviroment globals, List<Object> arguments, Object result) {
+        if (pure && current(globals))
+            results.put(new ArrayList<>(arguments), result);
+    }
+
+    private boolean current(Enviroment globals) {
+        for (Map.Entry<String, Object> callee : callees.entrySet()) {
+            if (globals.getAt(0, callee.getKey()) != callee.getValue())
+                return false;
+        }
+        return true;
+    }
+
+    @Native
+    static LoxFunction memoize(Interpreter interpreter, Object function) {
+        if (!(function instanceof LoxFunction))
+            throw new NativeError("Argument 1 to 'memoize' must be a function.");
+        LoxFunction memoized = (LoxFunction) function;
+        Map<String, Object> callees = new HashMap<>();
+        if (!Purity.isPure(memoized, interpreter.globals, callees))
+            throw new NativeError("Can't memoize " + memoized + ", it isn't pure.");
+        if (memoized.memo == null)
+            memoized.memo = new Memo(callees);
+        return memoized;
+    }
+
+    @Native
+    static LoxMap memoStats(Object function) {
+        if (!(function instanceof LoxFunction) || ((LoxFunction) function).memo == null)
+            throw new NativeError("Argument 1 to 'memoStats' must be a memoized function.");
+        Memo memo = ((LoxFunction) function).memo;
+        LoxMap stats = new LoxMap();
+        synchronized (memo) {
+            stats.put(null, "hits", (double) memo.hits);
+            stats.put(null, "misses", (double) memo.misses);
+            stats.put(null, "size", (double) memo.results.size());
+            stats.put(null, "capacity", (double) memo.results.capacity);
+        }
+        return stats;
+    }
+}
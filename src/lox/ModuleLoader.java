@@ -0,0 +1,184 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compiles the modules pulled in by import declarations.
+ * Independent modules are scanned, parsed and resolved in parallel on the
+ * fork-join pool, and each module is compiled only once no matter how many
+ * files import it.
+ */
+class ModuleLoader {
+
+    // compile-time representation of an imported file
+    static class Module {
+        final Path path;
+        final List<Stmt> statements;
+        boolean executed = false;
+
+        Module(Path path, List<Stmt> statements) {
+            this.path = path;
+            this.statements = statements;
+        }
+    }
+
+    private final Interpreter interpreter;
+    // every module compiled (or being compiled) so far, by absolute path
+    private final Map<Path, CompileTask> cache = new ConcurrentHashMap<>();
+    // the module each import declaration of the current load refers to, handed to
+    // the declarations once the load is over
+    private final Map<Stmt.Import, CompileTask> imports = new ConcurrentHashMap<>();
+    // the run the current load's errors are reported to, from the pool's threads
+    private Lox run;
+
+    ModuleLoader(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // compiles every module reachable from the program's imports.
+    // file is the program's own path, or null for code typed at the prompt.
+    void load(List<Stmt> statements, Path file) {
+        run = Lox.current();
+        Path directory = Paths.get("").toAbsolutePath();
+        if (file != null) {
+            directory = file.getParent();
+            // a module importing the main program must not run it a second time
+            Module main = new Module(file, statements);
+            main.executed = true;
+            cache.putIfAbsent(file, new CompileTask(main));
+        }
+
+        Path base = directory;
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                link(statements, base);
+            }
+        });
+
+        // back on a single thread. the map is emptied so it doesn't keep the syntax
+        // trees of earlier prompt lines alive.
+        for (Map.Entry<Stmt.Import, CompileTask> entry : imports.entrySet()) {
+            CompileTask task = entry.getValue();
+            entry.getKey().module = task.module;
+            if (task.module == null) {
+                if (task.unreadable)
+                    Lox.error(entry.getKey().keyword, "Can't read module '" + task.path + "'.");
+                // forget failed modules so the prompt can try them again
+                cache.remove(task.path);
+            }
+        }
+        imports.clear();
+    }
+
+    // the files that ran already, the program's own included
+    List<Path> executed() {
+        List<Path> paths = new ArrayList<>();
+        for (CompileTask task : cache.values()) {
+            if (task.module != null && task.module.executed)
+                paths.add(task.path);
+        }
+        return paths;
+    }
+
+    // a file that ran before, in the run a snapshot was taken of, mustn't run again
+    void markExecuted(Path path) {
+        Module module = new Module(path, new ArrayList<>());
+        module.executed = true;
+        cache.putIfAbsent(path, new CompileTask(module));
+    }
+
+    /*
+     * forks a compile task for every import nobody has started compiling yet and
+     * waits only for the tasks it forked. a module that is already owned by another
+     * importer is joined by that importer, so import cycles can't deadlock.
+     */
+    private void link(List<Stmt> statements, Path directory) {
+        List<CompileTask> forked = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (!(statement instanceof Stmt.Import))
+                continue;
+
+            Stmt.Import declaration = (Stmt.Import) statement;
+            Path path = directory.resolve(declaration.path).toAbsolutePath().normalize();
+
+            CompileTask task = new CompileTask(path);
+            CompileTask existing = cache.putIfAbsent(path, task);
+            if (existing == null) {
+                task.fork();
+                forked.add(task);
+            } else {
+                task = existing;
+            }
+            imports.put(declaration, task);
+        }
+
+        for (CompileTask task : forked) {
+            task.join();
+        }
+    }
+
+    private class CompileTask extends RecursiveAction {
+        final Path path;
+        // stays null when the file can't be read or doesn't parse
+        volatile Module module;
+        volatile boolean unreadable = false;
+
+        CompileTask(Path path) {
+            this.path = path;
+        }
+
+        CompileTask(Module module) {
+            this.path = module.path;
+            this.module = module;
+        }
+
+        @Override
+        protected void compute() {
+            Lox previous = Lox.switchTo(run);
+            try {
+                compile();
+            } finally {
+                Lox.switchTo(previous);
+            }
+        }
+
+        private void compile() {
+            String source;
+            try {
+                source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+            } catch (IOException error) {
+                unreadable = true;
+                return;
+            }
+
+            Scanner scanner = new Scanner(source);
+            Tokens tokens = scanner.scanTokens();
+            Parser parser = new Parser(tokens);
+            Module compiled = new Module(path, parser.parse());
+            // the parser already reported it, and the program won't run anyway
+            if (compiled.statements.contains(null))
+                return;
+
+            Resolver resolver = new Resolver();
+            resolver.resolve(compiled.statements);
+            new TypeInference().infer(compiled.statements);
+            new LoopInvariants().hoist(compiled.statements);
+            new Inliner().inline(compiled.statements);
+
+            module = compiled;
+            // imports are relative to the file that declares them
+            link(compiled.statements, path.getParent());
+        }
+    }
+}
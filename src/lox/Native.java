@@ -0,0 +1,19 @@
+package lox;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// marks a static method NativeFunction exposes as a Lox global.
+// the global is named after the method unless a name is given.
+// a pure native's result only depends on its arguments, and it doesn't change
+// or make anything the program could tell apart, see Purity.
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@interface Native {
+    String name() default "";
+
+    boolean pure() default false;
+}
@@ -0,0 +1,10 @@
+package lox;
+
+// thrown by natives, which don't know where they were called from. the call
+// site turns it into a RuntimeError at its paren.
+
+public class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
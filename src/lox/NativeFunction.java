@@ -0,0 +1,267 @@
+package lox;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Java static method exposed to Lox, see Native.
+ * Natives keep no state, so they are built once and every interpreter defines
+ * the same ones. The method's handle is adapted when it's built: every parameter gets
+ * a filter that checks and unboxes the Lox value, the result is boxed back, and
+ * the interpreter is passed first whether the method wants it or not. A call
+ * is then a single invokeExact on Objects.
+ */
+class NativeFunction implements LoxCallable, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodHandle TO_DOUBLE = coercion("toDouble", double.class);
+    private static final MethodHandle TO_INT = coercion("toInt", int.class);
+    private static final MethodHandle TO_STRING = coercion("toString", String.class);
+    private static final MethodHandle TO_BOOLEAN = coercion("toBoolean", boolean.class);
+
+    // every native by name, in the order they're defined
+    private static final Map<String, NativeFunction> registry = new LinkedHashMap<>();
+
+    static {
+        register(Stdlib.class);
+        register(Benchmark.class);
+        register(Memo.class);
+        register(Parallel.class);
+        register(LoxFile.class);
+    }
+
+    final String name;
+    private final int arity;
+    final boolean pure;
+    // (Interpreter, Object...) -> Object
+    private final transient MethodHandle handle;
+
+    private NativeFunction(String name, int arity, boolean pure, MethodHandle handle) {
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+        this.handle = handle;
+    }
+
+    // defines every native in the global scope
+    static void defineAll(Enviroment globals) {
+        registry.forEach(globals::define);
+    }
+
+    // defines the natives whose names globals don't have yet, so declarations
+    // that replaced them are kept
+    static void defineMissing(Enviroment globals) {
+        registry.forEach((name, function) -> {
+            if (!globals.isDefined(name))
+                globals.define(name, function);
+        });
+    }
+
+    private static void register(Class<?> library) {
+        for (Method method : library.getDeclaredMethods()) {
+            Native annotation = method.getAnnotation(Native.class);
+            if (annotation == null)
+                continue;
+            if (!Modifier.isStatic(method.getModifiers())) {
+                throw new IllegalArgumentException(method + " must be static to be native.");
+            }
+
+            String name = annotation.name().isEmpty() ? method.getName() : annotation.name();
+            registry.put(name, of(name, annotation.pure(), method));
+        }
+    }
+
+    private static NativeFunction of(String name, boolean pure, Method method) {
+        MethodHandle handle;
+        try {
+            method.setAccessible(true);
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException error) {
+            throw new IllegalArgumentException(error);
+        }
+
+        Class<?>[] types = method.getParameterTypes();
+        boolean wantsInterpreter = types.length > 0 && types[0] == Interpreter.class;
+        if (!wantsInterpreter)
+            handle = MethodHandles.dropArguments(handle, 0, Interpreter.class);
+
+        int first = wantsInterpreter ? 1 : 0;
+        int arity = types.length - first;
+        for (int i = 0; i < arity; i++) {
+            MethodHandle filter = filter(types[first + i]);
+            if (filter != null) {
+                filter = MethodHandles.insertArguments(filter, 1, name, i + 1);
+                handle = MethodHandles.filterArguments(handle, i + 1, filter);
+            }
+        }
+
+        // ints and longs come back as numbers, void as nil, the rest boxed as is
+        Class<?> result = method.getReturnType();
+        if (result == int.class || result == long.class || result == float.class)
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+
+        MethodType generic = MethodType.genericMethodType(arity).insertParameterTypes(0, Interpreter.class);
+        return new NativeFunction(name, arity, pure, handle.asType(generic));
+    }
+
+    private static MethodHandle filter(Class<?> type) {
+        if (type == double.class)
+            return TO_DOUBLE;
+        if (type == int.class)
+            return TO_INT;
+        if (type == String.class)
+            return TO_STRING;
+        if (type == boolean.class)
+            return TO_BOOLEAN;
+        if (type == Object.class)
+            return null;
+        throw new IllegalArgumentException("Natives can't take a " + type.getSimpleName() + ".");
+    }
+
+    private static MethodHandle coercion(String name, Class<?> type) {
+        try {
+            return lookup.findStatic(NativeFunction.class, name,
+                    MethodType.methodType(type, Object.class, String.class, int.class));
+        } catch (ReflectiveOperationException error) {
+            throw new AssertionError(error);
+        }
+    }
+
+    // the coercions, function and position only go into the error message
+
+    private static double toDouble(Object value, String function, int position) {
+        if (value instanceof Double)
+            return (double) value;
+        throw new NativeError(argument(function, position) + " must be a number.");
+    }
+
+    private static int toInt(Object value, String function, int position) {
+        double number = toDouble(value, function, position);
+        if (number != (int) number)
+            throw new NativeError(argument(function, position) + " must be an integer.");
+        return (int) number;
+    }
+
+    private static String toString(Object value, String function, int position) {
+        if (value instanceof String)
+            return (String) value;
+        throw new NativeError(argument(function, position) + " must be a string.");
+    }
+
+    private static boolean toBoolean(Object value, String function, int position) {
+        return Interpreter.isTruthy(value);
+    }
+
+    private static String argument(String function, int position) {
+        return "Argument " + position + " to '" + function + "'";
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        List<Object> values = new ArrayList<>(arguments.size() + 1);
+        values.add(interpreter);
+        values.addAll(arguments);
+        try {
+            return handle.invokeWithArguments(values);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        try {
+            return (Object) handle.invokeExact(interpreter);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a, b);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a, b, c);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a, b, c, d);
+        } catch (Throwable error) {
+            throw rethrow(error);
+        }
+    }
+
+    // lox errors and returns, and the jvm's own errors, go on as they are
+    private static RuntimeException rethrow(Throwable error) {
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        if (error instanceof Error)
+            throw (Error) error;
+        throw new RuntimeException(error);
+    }
+
+    // snapshots only store the name, and get the native of that name back
+    private Object writeReplace() {
+        return new Link(name);
+    }
+
+    private static class Link implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Link(String name) {
+            this.name = name;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            NativeFunction function = registry.get(name);
+            if (function == null)
+                throw new InvalidObjectException("There's no native '" + name + "' any more.");
+            return function;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,21 @@
+package lox;
+
+// base for the methods native objects hand out when a property is accessed.
+
+abstract class NativeMethod implements LoxCallable {
+    private final int arity;
+
+    NativeMethod(int arity) {
+        this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,171 @@
+package lox;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * parallelMap(array, fn), parallelFilter(array, fn) and
+ * parallelReduce(array, fn, initial) call a function on the elements of an
+ * array using all cores. The array is split in halves on the common
+ * ForkJoinPool down to chunks of about a SPLITS-th of the work per thread, and
+ * each chunk runs on an interpreter of its own, see Interpreter.worker(). The
+ * caller waits, and gets the results in the order of the elements.
+ *
+ * Only a pure function runs in parallel, see Purity, it can't touch anything
+ * another thread could. Any other function runs one element after another on
+ * the calling thread, so the result is always the one a loop would give. So do
+ * runs with a budget, whose limits count a single thread.
+ *
+ * parallelReduce folds the elements into initial from the left, fn(fn(initial,
+ * e0), e1) and so on. In parallel it combines neighbouring elements, then
+ * neighbouring results, and last initial with what they came to, so fn has to
+ * be associative for the result not to depend on how the array was split.
+ */
+final class Parallel {
+    private static final int SPLITS = 4;
+
+    private Parallel() {
+    }
+
+    @Native
+    static LoxArray parallelMap(Interpreter interpreter, Object array, Object function) {
+        Object[] elements = elements(array, "parallelMap");
+        Object[] results = new Object[elements.length];
+        run(interpreter, callable(function, 1, "parallelMap"), elements, results);
+
+        LoxArray mapped = new LoxArray();
+        for (Object result : results) {
+            mapped.push(result);
+        }
+        return mapped;
+    }
+
+    @Native
+    static LoxArray parallelFilter(Interpreter interpreter, Object array, Object function) {
+        Object[] elements = elements(array, "parallelFilter");
+        Object[] results = new Object[elements.length];
+        run(interpreter, callable(function, 1, "parallelFilter"), elements, results);
+
+        LoxArray kept = new LoxArray();
+        for (int i = 0; i < elements.length; i++) {
+            if (Interpreter.isTruthy(results[i]))
+                kept.push(elements[i]);
+        }
+        return kept;
+    }
+
+    @Native
+    static Object parallelReduce(Interpreter interpreter, Object array, Object function, Object initial) {
+        Object[] elements = elements(array, "parallelReduce");
+        LoxCallable reducer = callable(function, 2, "parallelReduce");
+        if (!parallel(interpreter, reducer)) {
+            Object reduced = initial;
+            for (Object element : elements) {
+                reduced = reducer.call2(interpreter, reduced, element);
+            }
+            return reduced;
+        }
+
+        if (elements.length == 0)
+            return initial;
+        Object rest = run(interpreter, reducer, elements, null);
+        return reducer.call2(interpreter, initial, rest);
+    }
+
+    private static Object[] elements(Object array, String name) {
+        if (!(array instanceof LoxArray))
+            throw new NativeError("Argument 1 to '" + name + "' must be an array.");
+        return ((LoxArray) array).elements();
+    }
+
+    private static LoxCallable callable(Object function, int arity, String name) {
+        if (!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != arity)
+            throw new NativeError("Argument 2 to '" + name + "' must be a function of " + arity
+                    + (arity == 1 ? " parameter." : " parameters."));
+        return (LoxCallable) function;
+    }
+
+    private static boolean parallel(Interpreter interpreter, LoxCallable function) {
+        return interpreter.budget == null && Purity.isPure(function, interpreter.globals);
+    }
+
+    // maps the elements into results, or reduces them when there are no results
+    private static Object run(Interpreter interpreter, LoxCallable function, Object[] elements, Object[] results) {
+        if (!parallel(interpreter, function))
+            return new Chunk(interpreter, function, elements, results, 0, elements.length, 0).compute();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int grain = Math.max(1, elements.length / (pool.getParallelism() * SPLITS));
+        return pool.invoke(new Chunk(interpreter, function, elements, results, 0, elements.length, grain));
+    }
+
+    private static class Chunk extends RecursiveTask<Object> {
+        private final Interpreter interpreter;
+        private final LoxCallable function;
+        private final Object[] elements;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        // the most elements a chunk runs without splitting, 0 when the caller runs
+        // them all itself
+        private final int grain;
+
+        Chunk(Interpreter interpreter, LoxCallable function, Object[] elements, Object[] results,
+                int from, int to, int grain) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Object compute() {
+            if (grain > 0 && to - from > grain) {
+                int middle = (from + to) >>> 1;
+                Chunk left = new Chunk(interpreter, function, elements, results, from, middle, grain);
+                Chunk right = new Chunk(interpreter, function, elements, results, middle, to, grain);
+                right.fork();
+                Object first = left.compute();
+                Object second = right.join();
+                return results == null ? combine(first, second) : null;
+            }
+
+            if (grain == 0)
+                return run(interpreter);
+            // the thread may be in the middle of another interpreter's chunk
+            Interpreter worker = interpreter.worker();
+            Fork previous = worker.enterFork();
+            try {
+                return run(worker);
+            } finally {
+                Fork.exit(previous);
+            }
+        }
+
+        private Object run(Interpreter worker) {
+            if (results == null) {
+                Object reduced = elements[from];
+                for (int i = from + 1; i < to; i++) {
+                    reduced = function.call2(worker, reduced, elements[i]);
+                }
+                return reduced;
+            }
+            for (int i = from; i < to; i++) {
+                results[i] = function.call1(worker, elements[i]);
+            }
+            return null;
+        }
+
+        private Object combine(Object first, Object second) {
+            Interpreter worker = interpreter.worker();
+            Fork previous = worker.enterFork();
+            try {
+                return function.call2(worker, first, second);
+            } finally {
+                Fork.exit(previous);
+            }
+        }
+    }
+}
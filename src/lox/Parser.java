@@ -12,11 +12,49 @@ public class Parser {
     }
 
     // flat input sequence
-    private final List<Token> tokens;
+    private final Tokens tokens;
     // point to the next token to be parsed.
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    // binding power of each token when it follows an operand, NONE for tokens
+    // that can't continue an expression
+    private static final int NONE = 0;
+    private static final int GROUP = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int LOGIC_OR = 2;
+    private static final int LOGIC_AND = 3;
+    private static final int EQUALITY = 4;
+    private static final int COMPARISON = 5;
+    private static final int TERM = 6;
+    private static final int FACTOR = 7;
+    private static final int UNARY = 8;
+
+    private static final int[] precedence = new int[TokenType.values().length];
+
+    static {
+        precedence[EQUAL.ordinal()] = ASSIGNMENT;
+        precedence[OR.ordinal()] = LOGIC_OR;
+        precedence[AND.ordinal()] = LOGIC_AND;
+        precedence[BANG_EQUAL.ordinal()] = EQUALITY;
+        precedence[EQUAL_EQUAL.ordinal()] = EQUALITY;
+        precedence[GREATER.ordinal()] = COMPARISON;
+        precedence[GREATER_EQUAL.ordinal()] = COMPARISON;
+        precedence[LESS.ordinal()] = COMPARISON;
+        precedence[LESS_EQUAL.ordinal()] = COMPARISON;
+        precedence[MINUS.ordinal()] = TERM;
+        precedence[PLUS.ordinal()] = TERM;
+        precedence[SLASH.ordinal()] = FACTOR;
+        precedence[STAR.ordinal()] = FACTOR;
+    }
+
+    // operator and operand stacks used by expression()
+    private Token[] operators = new Token[16];
+    private int[] powers = new int[16];
+    private int operatorCount = 0;
+    private Expr[] operands = new Expr[16];
+    private int operandCount = 0;
+
+    Parser(Tokens tokens) {
         this.tokens = tokens;
     }
 
@@ -40,17 +78,25 @@ public class Parser {
                 return function("function");
             if (match(VAR))
                 return varDeclaration();
+            if (match(IMPORT))
+                return importDeclaration();
 
             // falls to the existing statement() method
             return statement();
         } catch (ParseError error) {
+            // drop whatever the broken expression left on the stacks
+            Arrays.fill(operators, 0, operatorCount, null);
+            Arrays.fill(operands, 0, operandCount, null);
+            operatorCount = 0;
+            operandCount = 0;
             synchronize();
             return null;
         }
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect class name");
+        consume(IDENTIFIER, "Expect class name");
+        Token name = previous();
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
@@ -87,6 +133,8 @@ public class Parser {
             return returnStatement();
         if (match(WHILE))
             return whileStatement();
+        if (match(YIELD))
+            return yieldStatement();
 
         if (match(LEFT_BRACE))
             return new Stmt.Block(block());
@@ -94,6 +142,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'");
 
         Stmt initializer;
@@ -122,27 +171,11 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after for clauses");
 
         Stmt body = statement();
-        // desugaring
-        // check if increment exists
-        if (increment != null) {
-            // replace the body with a block that contains the original body followed by an
-            // expression that evaluates the increment.
-            body = new Stmt.Block(Arrays.asList(
-                    body,
-                    new Stmt.Expression(increment)));
-        }
-
-        // take the condition and the body and build the loop using primitive while loop
-        // if condition is ommited we jam true to make a infinite loop.
-        if (condition == null)
-            condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
 
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        // the loop keeps its own node instead of being desugared into a while, so
+        // the interpreter can run it without a new enviroment per iteration.
+        // a missing condition makes an infinite loop.
+        return new Stmt.For(keyword, initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
@@ -175,11 +208,19 @@ public class Parser {
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        Expr value = expression();
+        consume(SEMICOLON, "Expect ';' after yield value.");
+        return new Stmt.Yield(keyword, value);
+    }
+
     // parse var token
     private Stmt varDeclaration() {
         // parser has already matched the var token
         // consumes the identifier for variable name
-        Token name = consume(IDENTIFIER, "Expect variable name");
+        consume(IDENTIFIER, "Expect variable name");
+        Token name = previous();
 
         Expr initializer = null;
         // if it sees an = token it knows there is an initializer exp
@@ -193,13 +234,23 @@ public class Parser {
 
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        // the module path is a plain string, resolved against the importing file
+        consume(STRING, "Expect module path after 'import'.");
+        String path = (String) tokens.literal(current - 1);
+        consume(SEMICOLON, "Expect ';' after import.");
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt expressionStatement() {
@@ -210,7 +261,8 @@ public class Parser {
 
     private Stmt.Function function(String kind) {
         // consuming the function name
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         // consume the left paren
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> paramaters = new ArrayList<>();
@@ -222,7 +274,8 @@ public class Parser {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
 
-                paramaters.add(consume(IDENTIFIER, "Expect parameter name"));
+                consume(IDENTIFIER, "Expect parameter name");
+                paramaters.add(previous());
             } while (match(COMMA));
         }
         // consume right paren
@@ -244,122 +297,133 @@ public class Parser {
         return statements;
     }
 
+    /*
+     * expressions are parsed by precedence climbing over two explicit stacks
+     * instead of one recursive method per precedence level. binary operators,
+     * prefix operators and parentheses never recurse, so long operator chains and
+     * deeply nested groups don't grow the java stack. the stacks are shared by
+     * nested expressions (call arguments), each call only touches what is above
+     * the marks it found on entry.
+     */
     private Expr expression() {
-        return assigntment();
-    }
+        int operatorBase = operatorCount;
+        int openGroups = 0;
 
-    private Expr assigntment() {
+        while (true) {
+            // prefix operators and opening parens come before an operand
+            while (true) {
+                if (match(BANG) || match(MINUS)) {
+                    pushOperator(previous(), UNARY);
+                } else if (match(LEFT_PAREN)) {
+                    pushOperator(previous(), GROUP);
+                    openGroups++;
+                } else {
+                    break;
+                }
+            }
 
-        // parse the left side
-        Expr expr = or();
+            pushOperand(call(primary()));
 
-        // match for "="
-        if (match(EQUAL)) {
-            // get the token
-            Token equals = previous();
-            // call assignment againt to parse the right side(its right-associative)
-            Expr value = assigntment();
-
-            // after parsing the left side check to see if it is a var
-            if (expr instanceof Expr.Variable) {
-                // downcast to Expr.variable and get the name
-                Token name = ((Expr.Variable) expr).name;
-                // return the syntax tree.
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get, equals, value);
+            // a closing paren finishes a group, which can then be called or accessed
+            while (openGroups > 0 && match(RIGHT_PAREN)) {
+                reduce(operatorBase, ASSIGNMENT);
+                // pop the '('
+                operatorCount--;
+                openGroups--;
+                pushOperand(call(new Expr.Grouping(popOperand())));
             }
 
-            error(equals, "Invalid assignmeent target.");
-        }
-        return expr;
-    }
-
-    private Expr or() {
-        Expr expr = and();
+            TokenType type = tokens.type(current);
+            int power = precedence[type.ordinal()];
+            // anything that isn't a binary operator ends the expression
+            if (power == NONE)
+                break;
 
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+            // reduce the operators that bind at least as tight as this one,
+            // assignment is right-associative so it leaves other '=' on the stack
+            reduce(operatorBase, type == EQUAL ? power + 1 : power);
+            advance();
+            pushOperator(previous(), power);
         }
-        return expr;
-    }
 
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+        if (openGroups > 0) {
+            throw error(peek(), "Expect ')' after expression.");
         }
-        return expr;
-    }
 
-    private Expr equality() {
-        // comparison non terminal
-        Expr expr = comparison();
+        reduce(operatorBase, ASSIGNMENT);
+        return popOperand();
+    }
 
-        // matches the token to be != or == (consumes if true)
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            // consumed token
-            Token operator = previous();
-            // right non terminal
-            Expr right = comparison();
-            // make a new bin expr using the old one in the left, the token as the operator
-            // and the right
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    // pops operators that bind at least minPower and builds their nodes
+    private void reduce(int operatorBase, int minPower) {
+        while (operatorCount > operatorBase && powers[operatorCount - 1] >= minPower) {
+            operatorCount--;
+            Token operator = operators[operatorCount];
+            // drop the reference, the stacks outlive this expression
+            operators[operatorCount] = null;
 
-        return expr;
-    }
+            Expr right = popOperand();
+            if (powers[operatorCount] == UNARY) {
+                pushOperand(new Expr.Unary(operator, right));
+                continue;
+            }
 
-    private Expr comparison() {
-        Expr expr = term();
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr left = popOperand();
+            switch (operator.type) {
+                case EQUAL:
+                    pushOperand(assignment(left, operator, right));
+                    break;
+                case OR:
+                case AND:
+                    pushOperand(new Expr.Logical(left, operator, right));
+                    break;
+                default:
+                    pushOperand(new Expr.Binary(left, operator, right));
+                    break;
+            }
         }
-
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr assignment(Expr target, Token equals, Expr value) {
+        // after parsing the left side check to see if it is a var
+        if (target instanceof Expr.Variable) {
+            // downcast to Expr.variable and get the name
+            Token name = ((Expr.Variable) target).name;
+            return new Expr.Assign(name, value);
+        } else if (target instanceof Expr.Get) {
+            // a property access becomes a set on the same object
+            Expr.Get get = (Expr.Get) target;
+            return new Expr.Set(get.object, get.name, value);
+        } else if (target instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index) target;
+            return new Expr.IndexSet(index.object, index.bracket, index.index, value);
         }
 
-        return expr;
+        error(equals, "Invalid assignmeent target.");
+        return target;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    private void pushOperator(Token operator, int power) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            powers = Arrays.copyOf(powers, operatorCount * 2);
         }
-        return expr;
+        operators[operatorCount] = operator;
+        powers[operatorCount] = power;
+        operatorCount++;
     }
 
-    private Expr unary() {
-        // look at current token see how to parse
-        if (match(BANG, MINUS)) {
-            // grab the token
-            Token operator = previous();
-            // recursively call unary() again to parse the operand.
-            Expr right = unary();
-            // put in unary expression syntax tree
-            return new Expr.Unary(operator, right);
+    private void pushOperand(Expr operand) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
         }
+        operands[operandCount++] = operand;
+    }
 
-        return call();
+    private Expr popOperand() {
+        Expr operand = operands[--operandCount];
+        operands[operandCount] = null;
+        return operand;
     }
 
     // arguments grammar rule translated to code
@@ -378,14 +442,13 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = previous();
 
         return new Expr.Call(calle, paren, arguments);
     }
 
-    private Expr call() {
-        // parse the primary expr
-        Expr expr = primary();
+    private Expr call(Expr expr) {
         // each time we see a '(' we call finishCall() to parse the call expresion using
         // the previously parsed expresion as the callee.
         while (true) {
@@ -394,8 +457,13 @@ public class Parser {
                 // itself called.
                 expr = finishCall(expr);
             } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER, "Expect property name after '.'");
+                consume(IDENTIFIER, "Expect property name after '.'");
+                Token name = previous();
                 expr = new Expr.Get(expr, name);
+            } else if (match(LEFT_BRACKET)) {
+                Expr index = expression();
+                consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, previous(), index);
             }
 
             else {
@@ -414,13 +482,14 @@ public class Parser {
         if (match(NIL))
             return new Expr.Literal(null);
 
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+        if (match(NUMBER) || match(STRING)) {
+            return new Expr.Literal(tokens.literal(current - 1));
         }
         if (match(SUPER)) {
             Token keyword = previous();
             consume(DOT, "Expect '.' after 'super'");
-            Token method = consume(IDENTIFIER, "Expect superclass method name");
+            consume(IDENTIFIER, "Expect superclass method name");
+            Token method = previous();
             return new Expr.Super(keyword, method);
         }
         if (match(THIS))
@@ -429,32 +498,25 @@ public class Parser {
             return new Expr.Variable(previous());
         }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
         throw error(peek(), "Expect expression");
     }
 
-    // check the current token has any of the given types, consumes the token
-    // and returns true
-    // or returns false and doesn't consume.
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    // check the current token has the given type, consumes the token and returns
+    // true or returns false and doesn't consume.
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type))
-            return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
@@ -462,29 +524,28 @@ public class Parser {
     private boolean check(TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    // advanced on the token list returns the consumed token
-    private Token advance() {
+    // advance on the token list, previous() gives the consumed token
+    private void advance() {
         if (!isAtEnd())
             current++;
-        return previous();
     }
 
     // check if is at end of the token list
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
-    // peek the current token
+    // the current token, only built to report an error at it
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
-    // return the consumed token
+    // return the consumed token, built on demand for the tokens the tree keeps
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private ParseError error(Token token, String message) {
@@ -497,18 +558,20 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON)
+            if (tokens.type(current - 1) == SEMICOLON)
                 return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
+                case IMPORT:
                 case FOR:
                 case IF:
                 case WHILE:
                 case PRINT:
                 case RETURN:
+                case YIELD:
                     return;
             }
 
@@ -0,0 +1,239 @@
+package lox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether a function is pure: whether what it returns only depends on
+ * its arguments, and calling it changes nothing the program could see, so its
+ * results can be remembered, see Memo, and it can run on other threads, see
+ * Parallel.
+ *
+ * The body may only read and assign its own locals, and call the globals that
+ * hold pure functions or natives marked pure. Reading anything else (globals,
+ * closed over variables, fields, elements) could give a different answer next
+ * time, and printing, setting fields or elements, or making functions, classes
+ * and instances, is something the program could see. Callees are looked up when
+ * the function is checked, it stays pure as long as those globals aren't
+ * assigned other functions. The ones it looked up can be collected to check
+ * that later, see Memo.
+ */
+class Purity implements Stmt.Visitor<Boolean>, Expr.Visitor<Boolean> {
+    private final Enviroment globals;
+    // the functions being checked, a call back to one of them is taken to be pure
+    private final Set<Stmt.Function> checking;
+    // the globals looked up as callees, by name
+    private final Map<String, Object> callees;
+    // the scopes the function has opened, a variable that's further out is one it
+    // closes over
+    private int scopes = 1;
+
+    private Purity(Enviroment globals, Set<Stmt.Function> checking, Map<String, Object> callees) {
+        this.globals = globals;
+        this.checking = checking;
+        this.callees = callees;
+    }
+
+    static boolean isPure(LoxCallable function, Enviroment globals) {
+        return isPure(function, globals, new HashMap<>());
+    }
+
+    // also puts the globals it looked up as callees in callees
+    static boolean isPure(LoxCallable function, Enviroment globals, Map<String, Object> callees) {
+        return new Purity(globals, Collections.newSetFromMap(new IdentityHashMap<>()), callees).callee(function);
+    }
+
+    private boolean callee(Object callee) {
+        if (callee instanceof NativeFunction)
+            return ((NativeFunction) callee).pure;
+        // classes make instances
+        if (!(callee instanceof LoxFunction))
+            return false;
+        LoxFunction function = (LoxFunction) callee;
+        if (function.isInitializer)
+            return false;
+        if (!checking.add(function.declaration))
+            return true;
+        return new Purity(globals, checking, callees).all(function.declaration.body);
+    }
+
+    private boolean all(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!statement.accept(this))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean pure(Expr expr) {
+        return expr == null || expr.accept(this);
+    }
+
+    private boolean pure(Stmt stmt) {
+        return stmt == null || stmt.accept(this);
+    }
+
+    private boolean local(int depth) {
+        return depth >= 0 && depth < scopes;
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.declaresNothing)
+            scopes++;
+        boolean pure = all(stmt.statements);
+        if (!stmt.declaresNothing)
+            scopes--;
+        return pure;
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return pure(stmt.expression);
+    }
+
+    @Override
+    public Boolean visitForStmt(Stmt.For stmt) {
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        if (scoped)
+            scopes++;
+        boolean pure = pure(stmt.initializer) && pure(stmt.condition) && pure(stmt.body) && pure(stmt.increment);
+        if (scoped)
+            scopes--;
+        return pure;
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return pure(stmt.condition) && pure(stmt.thenBranch) && pure(stmt.elseBranch);
+    }
+
+    @Override
+    public Boolean visitImportStmt(Stmt.Import stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return pure(stmt.value);
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        return pure(stmt.initializer);
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return pure(stmt.condition) && pure(stmt.body);
+    }
+
+    @Override
+    public Boolean visitYieldStmt(Stmt.Yield stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitArgumentExpr(Expr.Argument expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        return local(expr.depth) && pure(expr.value);
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            if (!pure(argument))
+                return false;
+        }
+        // only callees known now, by a global name
+        if (!(expr.callee instanceof Expr.Variable) || ((Expr.Variable) expr.callee).depth >= 0)
+            return false;
+        String name = ((Expr.Variable) expr.callee).name.lexeme;
+        Object callee = globals.getAt(0, name);
+        callees.put(name, callee);
+        return callee(callee);
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return pure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitIndexExpr(Expr.Index expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitIndexSetExpr(Expr.IndexSet expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return pure(expr.left) && pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return local(expr.depth);
+    }
+}
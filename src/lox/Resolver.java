@@ -1,19 +1,30 @@
 package lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // for each scope, how many functions enclose it and whether a closure captured
+    // one of its variables
+    private final Stack<Integer> scopeFunctions = new Stack<>();
+    private final Stack<Boolean> scopeCaptured = new Stack<>();
+    private int functionDepth = 0;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // the function being resolved, a yield makes it a generator
+    private Stmt.Function currentDeclaration = null;
+    // its returns with a value, which a generator can't have
+    private List<Token> valueReturns = null;
+    // how many blocks, loops, ifs and functions the statement is in. blocks that
+    // declare nothing have no scope, so the scopes don't tell the top level.
+    private int nesting = 0;
+    // the yields resolved so far in the current function, a statement yields when
+    // there are more after resolving it
+    private int yields = 0;
 
     private enum FunctionType {
         NONE,
@@ -36,9 +47,28 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
-        resolve(stmt.statements);
-        endScope();
+        // a block that declares nothing runs in the enclosing scope, so it doesn't
+        // count when distances are measured
+        stmt.declaresNothing = true;
+        for (Stmt statement : stmt.statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                stmt.declaresNothing = false;
+                break;
+            }
+        }
+
+        int before = yields;
+        nesting++;
+        if (stmt.declaresNothing) {
+            resolve(stmt.statements);
+        } else {
+            beginScope();
+            resolve(stmt.statements);
+            endScope();
+        }
+        nesting--;
+        stmt.yields = yields > before;
         return null;
     }
 
@@ -102,6 +132,33 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // a var initializer gets a scope around the whole loop
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        if (scoped)
+            beginScope();
+        int before = yields;
+
+        if (stmt.initializer != null)
+            resolve(stmt.initializer);
+        if (stmt.condition != null)
+            resolve(stmt.condition);
+        if (stmt.increment != null)
+            resolve(stmt.increment);
+        nesting++;
+        resolve(stmt.body);
+        nesting--;
+        stmt.yields = yields > before;
+
+        if (scoped) {
+            // closures that capture the loop variable need a binding per iteration
+            stmt.captured = scopeCaptured.peek();
+            endScope();
+        }
+        return null;
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
@@ -114,9 +171,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         resolve(stmt.condition);
+        int before = yields;
+        nesting++;
         resolve(stmt.thenBranch);
         if (stmt.elseBranch != null)
             resolve(stmt.elseBranch);
+        nesting--;
+        stmt.yields = yields > before;
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // the module loader only looks for imports in the top-level statements
+        if (nesting > 0) {
+            Lox.error(stmt.keyword, "Can only import at top level.");
+        }
         return null;
     }
 
@@ -137,6 +207,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if (currentFunction == FunctionType.INITIALIZER) {
                 Lox.error(stmt.keyword, "Can't return a value from an initializer.");
             }
+            if (valueReturns != null)
+                valueReturns.add(stmt.keyword);
             resolve(stmt.value);
         }
 
@@ -146,7 +218,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        int before = yields;
+        nesting++;
         resolve(stmt.body);
+        nesting--;
+        stmt.yields = yields > before;
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentFunction == FunctionType.NONE) {
+            Lox.error(stmt.keyword, "Can't yield from top-level code.");
+        } else if (currentFunction == FunctionType.INITIALIZER) {
+            Lox.error(stmt.keyword, "Can't yield from an initializer.");
+        } else {
+            currentDeclaration.generator = true;
+            yields++;
+        }
+        resolve(stmt.value);
         return null;
     }
 
@@ -163,12 +253,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        // only the inliner makes them, after resolving
+        return null;
+    }
+
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         // resolve the expr on the assigned value
         resolve(expr.value);
         // then resolve the variable beign assigned to
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
         return null;
     }
 
@@ -202,6 +298,21 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         return null;
@@ -229,7 +340,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass != ClassType.SUBCLASS) {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
         return null;
     }
 
@@ -241,7 +352,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
         return null;
     }
 
@@ -259,7 +370,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
         return null;
     }
 
@@ -274,7 +385,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         // store the previous value
         FunctionType enclosingFunction = currentFunction;
+        Stmt.Function enclosingDeclaration = currentDeclaration;
+        List<Token> enclosingReturns = valueReturns;
+        int enclosingYields = yields;
         currentFunction = type;
+        currentDeclaration = function;
+        valueReturns = new ArrayList<>();
+        yields = 0;
+        functionDepth++;
+        nesting++;
 
         // begins new scope
         beginScope();
@@ -288,15 +407,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(function.body);
         // end the scope
         endScope();
+        // the yield may come after the return
+        if (function.generator) {
+            for (Token keyword : valueReturns) {
+                Lox.error(keyword, "Can't return a value from a generator.");
+            }
+        }
+        functionDepth--;
+        nesting--;
         currentFunction = enclosingFunction;
+        currentDeclaration = enclosingDeclaration;
+        valueReturns = enclosingReturns;
+        yields = enclosingYields;
     }
 
     private void beginScope() {
         scopes.push(new HashMap<String, Boolean>());
+        scopeFunctions.push(functionDepth);
+        scopeCaptured.push(false);
     }
 
     private void endScope() {
         scopes.pop();
+        scopeFunctions.pop();
+        scopeCaptured.pop();
     }
 
     private void declare(Token name) {
@@ -319,7 +453,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         scopes.peek().put(name.lexeme, true);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // the number of scopes between the innermost one and the variable's, or -1
+    private int resolveLocal(Token name) {
         // start at the innermost scope and work outwards
         // looking in each map for a matching name
         for (int i = scopes.size() - 1; i >= 0; i--) {
@@ -329,14 +464,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
              * found.
              */
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                /*
-                 * if we walk through all of the block scopes and never find the variable, we
-                 * leave it unresolved assuming its global.
-                 */
-                return;
+                // a function declared inside the scope is using it
+                if (scopeFunctions.get(i) < functionDepth)
+                    scopeCaptured.set(i, true);
+                return scopes.size() - 1 - i;
             }
         }
+        /*
+         * if we walk through all of the block scopes and never find the variable, we
+         * leave it unresolved assuming its global.
+         */
+        return -1;
     }
 
 }
@@ -1,17 +1,13 @@
 package lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.List;
-
 import static lox.TokenType.*;
 
 class Scanner {
-    // source code as a simple string
-    private final String source;
-    // list of tokens to be filled
-    private final List<Token> tokens = new ArrayList<>();
+    // source code, read directly by the scanning loops
+    private final char[] chars;
+    private final int length;
+    // tokens to be filled
+    private final Tokens tokens;
     // first char in the lexeme
     private int start = 0;
     // points to the char being considered
@@ -19,40 +15,20 @@ class Scanner {
     // what source line where on
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-
     Scanner(String source) {
-        this.source = source;
+        this.chars = source.toCharArray();
+        this.length = chars.length;
+        this.tokens = new Tokens(source);
     }
 
     // loop that scan tokens
-    public List<Token> scanTokens() {
+    public Tokens scanTokens() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
         // add a EOF token to final of the list and return it.
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
         return tokens;
     }
 
@@ -72,6 +48,12 @@ class Scanner {
             case '}':
                 addToken(RIGHT_BRACE);
                 break;
+            case '[':
+                addToken(LEFT_BRACKET);
+                break;
+            case ']':
+                addToken(RIGHT_BRACKET);
+                break;
             case ',':
                 addToken(COMMA);
                 break;
@@ -147,29 +129,84 @@ class Scanner {
     }
 
     private void identifier() {
-        while (isAlphaNumeric(peek()))
-            advance();
+        int end = current;
+        while (end < length && isAlphaNumeric(chars[end]))
+            end++;
+        current = end;
+
+        addToken(keyword(start, current - start));
+    }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null)
-            type = IDENTIFIER;
-        addToken(type);
+    // recognises keywords by their first letter and length, so an identifier never
+    // needs a string (or a hash of one) to find out it isn't a keyword
+    private TokenType keyword(int start, int length) {
+        switch (chars[start]) {
+            case 'a':
+                return keyword(start, length, "and", AND);
+            case 'c':
+                return keyword(start, length, "class", CLASS);
+            case 'e':
+                return keyword(start, length, "else", ELSE);
+            case 'f':
+                if (length == 5)
+                    return keyword(start, length, "false", FALSE);
+                if (length == 3 && chars[start + 1] == 'o')
+                    return keyword(start, length, "for", FOR);
+                return keyword(start, length, "fun", FUN);
+            case 'i':
+                if (length == 2)
+                    return keyword(start, length, "if", IF);
+                return keyword(start, length, "import", IMPORT);
+            case 'n':
+                return keyword(start, length, "nil", NIL);
+            case 'o':
+                return keyword(start, length, "or", OR);
+            case 'p':
+                return keyword(start, length, "print", PRINT);
+            case 'r':
+                return keyword(start, length, "return", RETURN);
+            case 's':
+                return keyword(start, length, "super", SUPER);
+            case 't':
+                if (length == 4 && chars[start + 1] == 'h')
+                    return keyword(start, length, "this", THIS);
+                return keyword(start, length, "true", TRUE);
+            case 'v':
+                return keyword(start, length, "var", VAR);
+            case 'w':
+                return keyword(start, length, "while", WHILE);
+            case 'y':
+                return keyword(start, length, "yield", YIELD);
+        }
+        return IDENTIFIER;
+    }
+
+    // compares the rest of the lexeme, the first letter already matched
+    private TokenType keyword(int start, int length, String keyword, TokenType type) {
+        if (length != keyword.length())
+            return IDENTIFIER;
+        for (int i = 1; i < length; i++) {
+            if (chars[start + i] != keyword.charAt(i))
+                return IDENTIFIER;
+        }
+        return type;
     }
 
     private void number() {
-        while (isDigit(peek()))
-            advance();
+        int end = current;
+        while (end < length && isDigit(chars[end]))
+            end++;
 
         // look for a fractional part
-        if (peek() == '.' && isDigit(peekNext())) {
+        if (end + 1 < length && chars[end] == '.' && isDigit(chars[end + 1])) {
             // consume the "."
-            advance();
-            while (isDigit(peek()))
-                advance();
+            end++;
+            while (end < length && isDigit(chars[end]))
+                end++;
         }
-        // converte to numeric value
-        addToken(NUMBER, Double.parseDouble((source.substring(start, current))));
+        current = end;
+        // the parser converts it if it ends up in the tree
+        addToken(NUMBER);
     }
 
     private void string() {
@@ -186,15 +223,14 @@ class Scanner {
         // the closing ""
         advance();
 
-        // Trim the surrounding quotes
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        // the value is cut out (without the quotes) by the parser
+        addToken(STRING);
     }
 
     private boolean match(char expected) {
         if (isAtEnd())
             return false;
-        if (source.charAt(current) != expected)
+        if (chars[current] != expected)
             return false;
 
         current++;
@@ -204,7 +240,7 @@ class Scanner {
     private char peek() {
         if (isAtEnd())
             return '\0';
-        return source.charAt(current);
+        return chars[current];
     }
 
     private boolean isAlpha(char c) {
@@ -218,9 +254,9 @@ class Scanner {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length())
+        if (current + 1 >= length)
             return '\0';
-        return source.charAt(current + 1);
+        return chars[current + 1];
     }
 
     private boolean isDigit(char c) {
@@ -229,22 +265,17 @@ class Scanner {
 
     // check if all chars have been consumed
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
 
     // consumes the next char in the source and returns it
     private char advance() {
-        return source.charAt(current++);
+        return chars[current++];
     }
 
+    // records where the current lexeme is, its text stays in the source
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    // grabs text of current lexeme and creates a new token for it.
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 
 }
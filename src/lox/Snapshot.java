@@ -0,0 +1,67 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves the state a prelude leaves behind so later runs can start from it
+ * instead of running the prelude again.
+ * A snapshot is the global scope written with Java serialization, so it holds
+ * everything the globals reach: classes, functions with their syntax trees and
+ * closures, instances, arrays and maps. Natives are written by name and linked
+ * to the running interpreter's natives when read. The files that already ran
+ * are kept too, so importing one of them again doesn't run it twice.
+ *
+ * The classes fix their serialVersionUIDs, so a snapshot doesn't go stale with
+ * every build, MAGIC changes when what they hold does. It should only read
+ * trusted files: the filter keeps deserialization to the interpreter's own
+ * classes and the few from the JDK they use.
+ */
+class Snapshot {
+    private static final String MAGIC = "jlox snapshot 1";
+    private static final ObjectInputFilter filter = ObjectInputFilter.Config.createFilter(
+            "maxdepth=10000;lox.*;java.lang.*;java.util.*;!*");
+
+    static void save(Interpreter interpreter, Path file) throws IOException {
+        List<String> executed = new ArrayList<>();
+        for (Path path : interpreter.modules.executed()) {
+            executed.add(path.toString());
+        }
+
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeUTF(MAGIC);
+            out.writeObject(executed);
+            out.writeObject(interpreter.globals);
+        }
+    }
+
+    static Interpreter load(Path file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.setObjectInputFilter(filter);
+            if (!in.readUTF().equals(MAGIC))
+                throw new IOException("Not a snapshot.");
+
+            @SuppressWarnings("unchecked")
+            List<String> executed = (List<String>) in.readObject();
+            Interpreter interpreter = new Interpreter((Enviroment) in.readObject());
+            for (String path : executed) {
+                interpreter.modules.markExecuted(Paths.get(path));
+            }
+            return interpreter;
+        } catch (InvalidClassException error) {
+            throw new IOException("The snapshot was written by a different build.");
+        } catch (ClassNotFoundException | ClassCastException error) {
+            throw new IOException("Not a snapshot.");
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package lox;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The natives every program starts with: the runtime's constructors, math,
+ * string functions and type checks. See NativeFunction for how arguments are
+ * checked and results converted.
+ */
+final class Stdlib {
+    private Stdlib() {
+    }
+
+    @Native
+    static double clock() {
+        return System.currentTimeMillis();
+    }
+
+    // nanoseconds from an arbitrary start, only good for measuring intervals
+    @Native
+    static double nanoClock() {
+        return System.nanoTime();
+    }
+
+    @Native(name = "Array")
+    static LoxArray array() {
+        return new LoxArray();
+    }
+
+    @Native(name = "Map")
+    static LoxMap map() {
+        return new LoxMap();
+    }
+
+    // math
+
+    @Native(pure = true)
+    static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    @Native(pure = true)
+    static double floor(double x) {
+        return Math.floor(x);
+    }
+
+    @Native(pure = true)
+    static double ceil(double x) {
+        return Math.ceil(x);
+    }
+
+    @Native(pure = true)
+    static double round(double x) {
+        return Math.rint(x);
+    }
+
+    @Native(pure = true)
+    static double abs(double x) {
+        return Math.abs(x);
+    }
+
+    @Native(pure = true)
+    static double pow(double base, double exponent) {
+        return Math.pow(base, exponent);
+    }
+
+    @Native(pure = true)
+    static double min(double a, double b) {
+        return Math.min(a, b);
+    }
+
+    @Native(pure = true)
+    static double max(double a, double b) {
+        return Math.max(a, b);
+    }
+
+    // a number in [0, 1)
+    @Native
+    static double random() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+
+    // strings
+
+    @Native(pure = true)
+    static int len(String text) {
+        return text.length();
+    }
+
+    @Native(pure = true)
+    static String substring(String text, int start, int end) {
+        if (start < 0 || end > text.length() || start > end)
+            throw new NativeError("Substring out of bounds.");
+        return text.substring(start, end);
+    }
+
+    // the position of the first match, or -1
+    @Native(pure = true)
+    static int indexOf(String text, String part) {
+        return text.indexOf(part);
+    }
+
+    @Native(pure = true)
+    static String upper(String text) {
+        return text.toUpperCase();
+    }
+
+    @Native(pure = true)
+    static String lower(String text) {
+        return text.toLowerCase();
+    }
+
+    @Native(pure = true)
+    static String trim(String text) {
+        return text.strip();
+    }
+
+    @Native
+    static LoxArray split(String text, String separator) {
+        LoxArray parts = new LoxArray();
+        if (separator.isEmpty()) {
+            for (int i = 0; i < text.length(); i++) {
+                parts.push(text.substring(i, i + 1));
+            }
+            return parts;
+        }
+
+        int start = 0;
+        for (int end = text.indexOf(separator); end >= 0; end = text.indexOf(separator, start)) {
+            parts.push(text.substring(start, end));
+            start = end + separator.length();
+        }
+        parts.push(text.substring(start));
+        return parts;
+    }
+
+    @Native(pure = true)
+    static String chr(int code) {
+        return String.valueOf((char) code);
+    }
+
+    @Native(pure = true)
+    static int ord(String character) {
+        if (character.length() != 1)
+            throw new NativeError("Argument 1 to 'ord' must be a single character.");
+        return character.charAt(0);
+    }
+
+    // the text print would show
+    @Native
+    static String str(Object value) {
+        return Interpreter.stringify(value);
+    }
+
+    // the number a string spells, or nil
+    @Native(pure = true)
+    static Object num(String text) {
+        try {
+            return Double.parseDouble(text.strip());
+        } catch (NumberFormatException error) {
+            return null;
+        }
+    }
+
+    // types
+
+    @Native(pure = true)
+    static String type(Object value) {
+        if (value == null)
+            return "nil";
+        if (value instanceof Double)
+            return "number";
+        if (value instanceof String)
+            return "string";
+        if (value instanceof Boolean)
+            return "boolean";
+        if (value instanceof LoxClass)
+            return "class";
+        if (value instanceof LoxCallable)
+            return "function";
+        if (value instanceof LoxInstance)
+            return "instance";
+        if (value instanceof LoxArray)
+            return "array";
+        if (value instanceof LoxMap)
+            return "map";
+        if (value instanceof LoxGenerator)
+            return "generator";
+        if (value instanceof LoxFile)
+            return "file";
+        return "native";
+    }
+
+    @Native(pure = true)
+    static boolean isNumber(Object value) {
+        return value instanceof Double;
+    }
+
+    @Native(pure = true)
+    static boolean isString(Object value) {
+        return value instanceof String;
+    }
+
+    @Native(pure = true)
+    static boolean isBoolean(Object value) {
+        return value instanceof Boolean;
+    }
+
+    @Native(pure = true)
+    static boolean isNil(Object value) {
+        return value == null;
+    }
+
+    @Native(pure = true)
+    static boolean isFunction(Object value) {
+        return value instanceof LoxCallable;
+    }
+}
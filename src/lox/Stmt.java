@@ -1,22 +1,30 @@
 package lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Stmt {
+abstract class Stmt implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitYieldStmt(Yield stmt);
   }
 
   abstract <R> R accept(Visitor<R> visitor);
   static class Block extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
@@ -27,8 +35,13 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    // filled in after parsing
+    boolean declaresNothing;
+    boolean yields;
   }
   static class Class extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
       this.name = name;
       this.superclass = superclass;
@@ -47,6 +60,8 @@ abstract class Stmt {
     final List<Stmt.Function> staticMethods;
   }
   static class Expression extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Expression(Expr expression) {
       this.expression = expression;
     }
@@ -58,7 +73,35 @@ abstract class Stmt {
 
     final Expr expression;
   }
+  static class For extends Stmt {
+    private static final long serialVersionUID = 1L;
+
+    For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.keyword = keyword;
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    final Token keyword;
+    final Stmt initializer;
+    final Expr condition;
+    final Expr increment;
+    final Stmt body;
+    // filled in after parsing
+    boolean captured;
+    int invariants;
+    boolean yields;
+  }
   static class Function extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
       this.params = params;
@@ -73,8 +116,13 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    // filled in after parsing
+    transient ClosureCompiler.Exec compiled;
+    boolean generator;
   }
   static class If extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
@@ -89,8 +137,30 @@ abstract class Stmt {
     final Expr condition;
     final Stmt thenBranch;
     final Stmt elseBranch;
+    // filled in after parsing
+    boolean yields;
+  }
+  static class Import extends Stmt {
+    private static final long serialVersionUID = 1L;
+
+    Import(Token keyword, String path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final String path;
+    // filled in after parsing
+    transient ModuleLoader.Module module;
   }
   static class Print extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Print(Expr expression) {
       this.expression = expression;
     }
@@ -103,6 +173,8 @@ abstract class Stmt {
     final Expr expression;
   }
   static class Return extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
@@ -117,6 +189,8 @@ abstract class Stmt {
     final Expr value;
   }
   static class Var extends Stmt {
+    private static final long serialVersionUID = 1L;
+
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
@@ -131,7 +205,10 @@ abstract class Stmt {
     final Expr initializer;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    private static final long serialVersionUID = 1L;
+
+    While(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -141,7 +218,27 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
+    // filled in after parsing
+    int invariants;
+    boolean yields;
+  }
+  static class Yield extends Stmt {
+    private static final long serialVersionUID = 1L;
+
+    Yield(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitYieldStmt(this);
+    }
+
+    final Token keyword;
+    final Expr value;
   }
 }
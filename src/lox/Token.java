@@ -1,19 +1,23 @@
 package lox;
 
-public class Token {
+import java.io.Serializable;
+
+// a token the syntax tree holds on to, only what the runtime and error
+// reporting need. literal values live in the tree's Expr.Literal nodes.
+public class Token implements Serializable {
+	private static final long serialVersionUID = 1L;
+
 	final TokenType type;
 	final String lexeme;
-	final Object literal;
 	final int line;
 
-	Token(TokenType type, String lexeme, Object literal, int line) {
+	Token(TokenType type, String lexeme, int line) {
 		this.type = type;
 		this.lexeme = lexeme;
-		this.literal = literal;
 		this.line = line;
 	}
 
 	public String toString() {
-		return type + " " + lexeme + " " + literal;
+		return type + " " + lexeme;
 	}
 }
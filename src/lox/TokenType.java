@@ -2,7 +2,7 @@ package lox;
 
 public enum TokenType {
   // Single-character tokens.
-  LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+  LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET,
   COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
 
   // One or two character tokens.
@@ -15,8 +15,8 @@ public enum TokenType {
   IDENTIFIER, STRING, NUMBER,
 
   // Keywords.
-  AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-  PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+  AND, CLASS, ELSE, FALSE, FUN, FOR, IF, IMPORT, NIL, OR,
+  PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, YIELD,
 
   EOF
 }
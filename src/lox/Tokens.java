@@ -0,0 +1,149 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static lox.TokenType.*;
+
+/**
+ * The scanner's output. Each token is three ints that point back into the
+ * source: its start offset, its length, and its line packed with its type.
+ * Token objects, lexemes and literal values are only created for the tokens
+ * the parser keeps in the syntax tree or reports an error at.
+ */
+class Tokens {
+    private static final int FIELDS = 3;
+    private static final int TYPE_BITS = 6;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+    private static final TokenType[] types = TokenType.values();
+
+    // any integer literal this short fits in a double's mantissa
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    // lexemes of the tokens whose text never changes, every token of one of these
+    // types shares the same string instead of cutting a new one out of the source
+    private static final String[] fixedLexemes = new String[types.length];
+
+    static {
+        fixedLexemes[LEFT_PAREN.ordinal()] = "(";
+        fixedLexemes[RIGHT_PAREN.ordinal()] = ")";
+        fixedLexemes[LEFT_BRACE.ordinal()] = "{";
+        fixedLexemes[RIGHT_BRACE.ordinal()] = "}";
+        fixedLexemes[LEFT_BRACKET.ordinal()] = "[";
+        fixedLexemes[RIGHT_BRACKET.ordinal()] = "]";
+        fixedLexemes[COMMA.ordinal()] = ",";
+        fixedLexemes[DOT.ordinal()] = ".";
+        fixedLexemes[MINUS.ordinal()] = "-";
+        fixedLexemes[PLUS.ordinal()] = "+";
+        fixedLexemes[SEMICOLON.ordinal()] = ";";
+        fixedLexemes[SLASH.ordinal()] = "/";
+        fixedLexemes[STAR.ordinal()] = "*";
+        fixedLexemes[BANG.ordinal()] = "!";
+        fixedLexemes[BANG_EQUAL.ordinal()] = "!=";
+        fixedLexemes[EQUAL.ordinal()] = "=";
+        fixedLexemes[EQUAL_EQUAL.ordinal()] = "==";
+        fixedLexemes[GREATER.ordinal()] = ">";
+        fixedLexemes[GREATER_EQUAL.ordinal()] = ">=";
+        fixedLexemes[LESS.ordinal()] = "<";
+        fixedLexemes[LESS_EQUAL.ordinal()] = "<=";
+        fixedLexemes[AND.ordinal()] = "and";
+        fixedLexemes[CLASS.ordinal()] = "class";
+        fixedLexemes[ELSE.ordinal()] = "else";
+        fixedLexemes[FALSE.ordinal()] = "false";
+        fixedLexemes[FOR.ordinal()] = "for";
+        fixedLexemes[FUN.ordinal()] = "fun";
+        fixedLexemes[IF.ordinal()] = "if";
+        fixedLexemes[IMPORT.ordinal()] = "import";
+        fixedLexemes[NIL.ordinal()] = "nil";
+        fixedLexemes[OR.ordinal()] = "or";
+        fixedLexemes[PRINT.ordinal()] = "print";
+        fixedLexemes[RETURN.ordinal()] = "return";
+        fixedLexemes[SUPER.ordinal()] = "super";
+        fixedLexemes[THIS.ordinal()] = "this";
+        fixedLexemes[TRUE.ordinal()] = "true";
+        fixedLexemes[VAR.ordinal()] = "var";
+        fixedLexemes[WHILE.ordinal()] = "while";
+        fixedLexemes[YIELD.ordinal()] = "yield";
+        fixedLexemes[EOF.ordinal()] = "";
+    }
+
+    private final String source;
+    private int[] data = new int[FIELDS * 256];
+    private int count = 0;
+    // every occurrence of a name shares one lexeme
+    private final Map<String, String> names = new HashMap<>();
+
+    Tokens(String source) {
+        this.source = source;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count * FIELDS == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        int at = count * FIELDS;
+        data[at] = start;
+        data[at + 1] = length;
+        data[at + 2] = line << TYPE_BITS | type.ordinal();
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return types[data[index * FIELDS + 2] & TYPE_MASK];
+    }
+
+    int line(int index) {
+        return data[index * FIELDS + 2] >>> TYPE_BITS;
+    }
+
+    // the token object the syntax tree keeps
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), line(index));
+    }
+
+    String lexeme(int index) {
+        String lexeme = fixedLexemes[type(index).ordinal()];
+        if (lexeme != null)
+            return lexeme;
+
+        int start = data[index * FIELDS];
+        String text = source.substring(start, start + data[index * FIELDS + 1]);
+        if (type(index) != IDENTIFIER)
+            return text;
+
+        String name = names.putIfAbsent(text, text);
+        return name == null ? text : name;
+    }
+
+    // the value of a NUMBER or STRING token
+    Object literal(int index) {
+        int start = data[index * FIELDS];
+        int end = start + data[index * FIELDS + 1];
+        if (type(index) == STRING) {
+            // trim the surrounding quotes
+            return source.substring(start + 1, end - 1);
+        }
+        return number(start, end);
+    }
+
+    private double number(int start, int end) {
+        // integers with up to 15 digits are exact as doubles, fractions and longer
+        // literals go through the library so they round the way they always did
+        if (end - start > MAX_EXACT_DIGITS)
+            return Double.parseDouble(source.substring(start, end));
+
+        long integral = 0;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '.')
+                return Double.parseDouble(source.substring(start, end));
+            integral = integral * 10 + (c - '0');
+        }
+        return integral;
+    }
+}
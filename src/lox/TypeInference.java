@@ -0,0 +1,398 @@
+package lox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Runs after the resolver and proves the types of expressions where it can. The
+ * arithmetic and comparisons whose operands are proven to be of one type are
+ * marked with it, so the interpreters don't check them.
+ *
+ * It's flow-sensitive: a local has the type of the values assigned to it on
+ * every path to the point it's read, and loops are walked again until the types
+ * at their head stop changing. Only the locals of the function being looked at
+ * are tracked. Globals, fields, elements, call results and the locals of
+ * enclosing functions are never proven, nor are locals a nested function
+ * assigns to, since the closure may run between any two statements. Anything
+ * not proven is left to the runtime checks, so it never changes behaviour.
+ */
+class TypeInference implements Expr.Visitor<TypeInference.Type>, Stmt.Visitor<Void> {
+    enum Type {
+        NUMBER,
+        STRING,
+        BOOLEAN
+    }
+
+    // the declarations in each scope, by name, and how many functions enclose it
+    private final Stack<Map<String, Token>> scopes = new Stack<>();
+    private final Stack<Integer> scopeFunctions = new Stack<>();
+    private int functionDepth = 0;
+    // the proven type of each local at the point being looked at, by declaration
+    private Map<Token, Type> types = new IdentityHashMap<>();
+    // the locals nested functions assign to
+    private final Set<Token> reassigned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    void infer(List<Stmt> statements) {
+        // what's found out about the top level was found out before any closures
+        // that assign to its locals were seen, it's looked at again if there were
+        int known;
+        do {
+            known = reassigned.size();
+            types = new IdentityHashMap<>();
+            // top-level declarations are globals, they get no scope
+            infer(statements, false);
+        } while (reassigned.size() != known);
+    }
+
+    private void infer(List<Stmt> statements, boolean scoped) {
+        if (scoped)
+            beginScope();
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+        if (scoped)
+            endScope();
+    }
+
+    private Type infer(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        infer(stmt.statements, true);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name, null);
+        if (stmt.superclass != null)
+            infer(stmt.superclass);
+        for (Stmt.Function method : stmt.methods) {
+            inferFunction(method);
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            inferFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null)
+            stmt.initializer.accept(this);
+        loop(stmt.condition, stmt.body, stmt.increment);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, null);
+        inferFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        infer(stmt.condition);
+        Map<Token, Type> before = new IdentityHashMap<>(types);
+        stmt.thenBranch.accept(this);
+        Map<Token, Type> afterThen = types;
+        types = before;
+        if (stmt.elseBranch != null)
+            stmt.elseBranch.accept(this);
+        types = join(afterThen, types);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null)
+            infer(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Type type = stmt.initializer == null ? null : infer(stmt.initializer);
+        declare(stmt.name, type);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body, null);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        infer(stmt.value);
+        return null;
+    }
+
+    // the types at the head of a loop are the ones on entry joined with the ones
+    // at the end of the body, the walk is repeated until they settle. only the
+    // last walk's marks are left on the nodes.
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        Map<Token, Type> entry = types;
+        Map<Token, Type> head = entry;
+        for (;;) {
+            types = new IdentityHashMap<>(head);
+            if (condition != null)
+                infer(condition);
+            // the loop ends when the condition is false
+            Map<Token, Type> exit = new IdentityHashMap<>(types);
+            body.accept(this);
+            if (increment != null)
+                infer(increment);
+
+            Map<Token, Type> next = join(entry, types);
+            if (next.equals(head)) {
+                types = exit;
+                return;
+            }
+            head = next;
+        }
+    }
+
+    @Override
+    public Type visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        Type type = infer(expr.value);
+        Token local = lookup(expr.name);
+        if (local != null) {
+            if (declaredHere(local)) {
+                set(local, type);
+            } else {
+                reassigned.add(local);
+            }
+        }
+        return type;
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        Type left = infer(expr.left);
+        Type right = infer(expr.right);
+        expr.operands = left == right ? left : null;
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return Type.BOOLEAN;
+            case MINUS:
+            case SLASH:
+            case STAR:
+                // anything else throws
+                return Type.NUMBER;
+            case PLUS:
+                if (left == Type.NUMBER && right == Type.NUMBER)
+                    return Type.NUMBER;
+                if (left == Type.STRING || right == Type.STRING)
+                    return Type.STRING;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        infer(expr.object);
+        return null;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public Type visitIndexExpr(Expr.Index expr) {
+        infer(expr.object);
+        infer(expr.index);
+        return null;
+    }
+
+    @Override
+    public Type visitIndexSetExpr(Expr.IndexSet expr) {
+        infer(expr.object);
+        infer(expr.index);
+        return infer(expr.value);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        return typeOf(expr.value);
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        Type left = infer(expr.left);
+        // the right operand may not run
+        Map<Token, Type> before = new IdentityHashMap<>(types);
+        Type right = infer(expr.right);
+        types = join(before, types);
+        return left == right ? left : null;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        infer(expr.object);
+        return infer(expr.value);
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        Type operand = infer(expr.right);
+        expr.operand = operand;
+        if (expr.operator.type == TokenType.BANG)
+            return Type.BOOLEAN;
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Token local = lookup(expr.name);
+        if (local == null || !declaredHere(local) || reassigned.contains(local))
+            return null;
+        return types.get(local);
+    }
+
+    // the body starts with nothing known but the parameters, and is looked at again
+    // if a closure inside it turns out to assign to one of its locals
+    private void inferFunction(Stmt.Function function) {
+        Map<Token, Type> enclosing = types;
+        functionDepth++;
+        int known;
+        do {
+            known = reassigned.size();
+            types = new IdentityHashMap<>();
+            beginScope();
+            for (Token param : function.params) {
+                declare(param, null);
+            }
+            infer(function.body, false);
+            endScope();
+        } while (reassigned.size() != known);
+        functionDepth--;
+        types = enclosing;
+    }
+
+    static Type typeOf(Object value) {
+        if (value instanceof Double)
+            return Type.NUMBER;
+        if (value instanceof String)
+            return Type.STRING;
+        if (value instanceof Boolean)
+            return Type.BOOLEAN;
+        return null;
+    }
+
+    // what's known on both paths
+    private static Map<Token, Type> join(Map<Token, Type> a, Map<Token, Type> b) {
+        Map<Token, Type> joined = new IdentityHashMap<>();
+        for (Map.Entry<Token, Type> entry : a.entrySet()) {
+            if (entry.getValue() == b.get(entry.getKey()))
+                joined.put(entry.getKey(), entry.getValue());
+        }
+        return joined;
+    }
+
+    private void set(Token local, Type type) {
+        if (type == null) {
+            types.remove(local);
+        } else {
+            types.put(local, type);
+        }
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<>());
+        scopeFunctions.push(functionDepth);
+    }
+
+    private void endScope() {
+        scopes.pop();
+        scopeFunctions.pop();
+    }
+
+    private void declare(Token name, Type type) {
+        if (scopes.isEmpty())
+            return;
+        scopes.peek().put(name.lexeme, name);
+        set(name, type);
+    }
+
+    // the declaration a name refers to, or null for a global
+    private Token lookup(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Token local = scopes.get(i).get(name.lexeme);
+            if (local != null)
+                return local;
+        }
+        return null;
+    }
+
+    // whether a local belongs to the function being looked at
+    private boolean declaredHere(Token local) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).get(local.lexeme) == local)
+                return scopeFunctions.get(i) == functionDepth;
+        }
+        return false;
+    }
+}
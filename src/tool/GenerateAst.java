@@ -13,30 +13,39 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                // a parameter read in the copy of an inlined body, see Inliner
+                "Argument : Token name, int index",
+                "Assign   : Token name, Expr value | int depth = -1",
+                "Binary   : Expr left, Token operator, Expr right | TypeInference.Type operands, LoopInvariants.Slot hoisted",
                 // token for location
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
+                "Call     : Expr callee, Token paren, List<Expr> arguments | transient LoxCallable checked, transient Inliner.Inline inline",
                 "Get      : Expr object, Token name",
                 "Grouping : Expr expression",
+                "Index    : Expr object, Token bracket, Expr index",
+                "IndexSet : Expr object, Token bracket, Expr index, Expr value",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
                 "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
-                "Unary    : Token operator, Expr right",
-                "Variable : Token name"));
+                "Super    : Token keyword, Token method | int depth = -1",
+                "This     : Token keyword | int depth = -1",
+                "Unary    : Token operator, Expr right | TypeInference.Type operand",
+                "Variable : Token name | int depth = -1"));
 
+        // yields marks the statements a generator's body can be suspended in, see
+        // LoxGenerator
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements | boolean declaresNothing, boolean yields",
                 "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
-                "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+                "For        : Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body | boolean captured, int invariants, boolean yields",
+                "Function   : Token name, List<Token> params, List<Stmt> body | transient ClosureCompiler.Exec compiled, boolean generator",
+                "If         : Expr condition, Stmt thenBranch, Stmt elseBranch | boolean yields",
+                "Import     : Token keyword, String path | transient ModuleLoader.Module module",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
                 "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"));
+                "While      : Token keyword, Expr condition, Stmt body | int invariants, boolean yields",
+                "Yield      : Token keyword, Expr value"));
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -45,9 +54,13 @@ public class GenerateAst {
 
         writer.println("package lox;");
         writer.println();
+        writer.println("import java.io.Serializable;");
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        // snapshots serialize the syntax trees of the functions they keep
+        writer.println("abstract class " + baseName + " implements Serializable {");
+        writer.println("  private static final long serialVersionUID = 1L;");
+        writer.println();
 
         defineVisitor(writer, baseName, types);
 
@@ -58,8 +71,12 @@ public class GenerateAst {
 
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // fields after a '|' aren't set by the parser, later passes fill them in.
+            // a resolved depth of -1 means the variable is global.
+            String[] parts = type.split(":")[1].split("\\|");
+            String fields = parts[0].trim();
+            String annotations = parts.length > 1 ? parts[1].trim() : "";
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         writer.println("}");
@@ -78,8 +95,11 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+            String annotationList) {
         writer.println("  static class " + className + " extends " + baseName + " {");
+        writer.println("    private static final long serialVersionUID = 1L;");
+        writer.println();
 
         // Constructor.
         writer.println("    " + className + "(" + fieldList + ") {");
@@ -106,6 +126,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        if (!annotationList.isEmpty()) {
+            writer.println("    // filled in after parsing");
+            for (String annotation : annotationList.split(", ")) {
+                writer.println("    " + annotation + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }